@@ -0,0 +1,106 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+import drm.taskworker.queue.MemoryQueueStore;
+import drm.taskworker.queue.Queue;
+import drm.taskworker.queue.Queue.LeaseMode;
+import drm.taskworker.queue.TaskHandle;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Competing workers that lease from the same jobs of the cassandra queue on
+ * the memory store. In lock mode the workers take turns on the store lock of
+ * a bucket, in cas mode they claim different tasks of the bucket at the same
+ * time.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+public class LeaseContentionBenchmark {
+	private static final String WORKER = "benchmark";
+	
+	/**
+	 * The lease mode of the queue
+	 */
+	@Param({"lock", "cas"})
+	public String mode;
+	
+	/**
+	 * The number of jobs the workers lease from
+	 */
+	@Param({"1", "10"})
+	public int jobs;
+	
+	private Queue queue;
+	private List<UUID> jobIds;
+	
+	@Setup
+	public void setup() {
+		Logger.getLogger(Queue.class.getCanonicalName()).setLevel(Level.WARNING);
+		
+		// the lock mode only takes the store lock in a distributed setup
+		System.setProperty("taskworker.distributed", "true");
+		this.queue = new Queue(new MemoryQueueStore(), LeaseMode.valueOf(this.mode.toUpperCase()));
+		
+		this.jobIds = new ArrayList<>();
+		for (int i = 0; i < this.jobs; i++) {
+			this.jobIds.add(UUID.randomUUID());
+		}
+	}
+	
+	/**
+	 * Add a task to a random job and lease and finish a task of that job
+	 */
+	@Benchmark
+	public int leaseFinish() throws ConnectionException {
+		UUID jobId = this.jobIds.get(ThreadLocalRandom.current().nextInt(this.jobs));
+		this.queue.addTask(new Task(jobId, UUID.randomUUID(), WORKER));
+		
+		List<TaskHandle> handles = this.queue.leaseTasks(60, TimeUnit.SECONDS, 1, WORKER, jobId);
+		for (TaskHandle handle : handles) {
+			this.queue.finishTask(new Task(jobId, handle.getId(), WORKER));
+		}
+		return handles.size();
+	}
+}
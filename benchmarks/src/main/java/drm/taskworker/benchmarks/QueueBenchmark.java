@@ -0,0 +1,147 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+import drm.taskworker.queue.MemoryQueue;
+import drm.taskworker.queue.MemoryQueueStore;
+import drm.taskworker.queue.Queue;
+import drm.taskworker.queue.Queue.LeaseMode;
+import drm.taskworker.queue.QueueBackend;
+import drm.taskworker.queue.TaskHandle;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Add, lease and finish cycles on the queues. The cassandra queue runs on the
+ * memory store, so this measures the bookkeeping of the cassandra queue in 
+ * both lease modes without the round-trips to cassandra. The memory queue is
+ * measured as a baseline.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueBenchmark {
+	private static final String WORKER = "benchmark";
+	
+	/**
+	 * The number of tasks that is added, leased and finished per cycle
+	 */
+	@Param({"1", "100"})
+	public int batch;
+	
+	/**
+	 * The number of jobs the tasks are spread over
+	 */
+	@Param({"1", "100"})
+	public int jobs;
+	
+	/**
+	 * The queue: the memory queue or the cassandra queue in lock or cas mode
+	 */
+	@Param({"memory", "lock", "cas"})
+	public String backend;
+	
+	private QueueBackend queue;
+	private List<UUID> jobIds;
+	private Map<UUID, Task> tasks;
+	
+	@Setup
+	public void setup() {
+		// the queues log every task on info
+		Logger.getLogger(MemoryQueue.class.getCanonicalName()).setLevel(Level.WARNING);
+		Logger.getLogger(Queue.class.getCanonicalName()).setLevel(Level.WARNING);
+		
+		if (this.backend.equals("memory")) {
+			this.queue = new MemoryQueue();
+		} else {
+			this.queue = new Queue(new MemoryQueueStore(), LeaseMode.valueOf(this.backend.toUpperCase()));
+		}
+		
+		this.jobIds = new ArrayList<>();
+		for (int i = 0; i < this.jobs; i++) {
+			this.jobIds.add(UUID.randomUUID());
+		}
+		
+		this.tasks = new HashMap<>();
+		for (int i = 0; i < this.batch; i++) {
+			Task task = new Task(this.jobIds.get(i % this.jobs), UUID.randomUUID(), WORKER);
+			this.tasks.put(task.getId(), task);
+		}
+	}
+	
+	/**
+	 * Lease the tasks job by job, as workers with a scheduled job do
+	 */
+	@Benchmark
+	public int leaseFinish() throws ConnectionException {
+		this.addAll();
+		
+		List<TaskHandle> handles = new ArrayList<>();
+		for (UUID jobId : this.jobIds) {
+			handles.addAll(this.queue.leaseTasks(60, TimeUnit.SECONDS, this.batch - handles.size(), WORKER, jobId));
+		}
+		return this.finishAll(handles);
+	}
+	
+	/**
+	 * Lease the tasks from any job, as workers without a scheduled job do
+	 */
+	@Benchmark
+	public int leaseFinishAnyJob() throws ConnectionException {
+		this.addAll();
+		
+		List<TaskHandle> handles = this.queue.leaseTasks(60, TimeUnit.SECONDS, this.batch, WORKER, null);
+		return this.finishAll(handles);
+	}
+	
+	private void addAll() {
+		for (Task task : this.tasks.values()) {
+			this.queue.addTask(task);
+		}
+	}
+	
+	private int finishAll(List<TaskHandle> handles) {
+		for (TaskHandle handle : handles) {
+			this.queue.finishTask(this.tasks.get(handle.getId()));
+		}
+		return handles.size();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import drm.taskworker.schedule.WeightedRoundRobin;
+
+/**
+ * The cost of picking the next job with the weighted round robin scheduler
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScheduleBenchmark {
+	@Param({"1", "10", "1000"})
+	public int jobs;
+	
+	private WeightedRoundRobin wrr;
+	
+	@Setup
+	public void setup() {
+		String[] names = new String[this.jobs];
+		float[] weights = new float[this.jobs];
+		for (int i = 0; i < this.jobs; i++) {
+			names[i] = "job-" + i;
+			weights[i] = i + 1;
+		}
+		this.wrr = new WeightedRoundRobin(names, weights);
+	}
+	
+	@Benchmark
+	public String getNext() {
+		return this.wrr.getNext();
+	}
+	
+	@Benchmark
+	public WeightedRoundRobin create() {
+		String[] names = this.wrr.getNames();
+		float[] weights = new float[names.length];
+		Arrays.fill(weights, 1.0f);
+		return new WeightedRoundRobin(names, weights);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.astyanax.serializers.ObjectSerializer;
+
+import drm.taskworker.Entities.YamlSerialiser;
+import drm.taskworker.config.WorkflowConfig;
+import drm.taskworker.monitoring.Statistic;
+
+/**
+ * Round-trips of the values that are serialised into cassandra: the 
+ * statistics (yaml), the parameters of tasks and the workflow configuration
+ * of a job (java serialisation).
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+	/**
+	 * The size of the serialised values: the number of statistics, the 
+	 * length of a parameter in bytes and the number of steps in a workflow.
+	 */
+	@Param({"10", "1000"})
+	public int size;
+	
+	private YamlSerialiser<List<Statistic>> yaml = new YamlSerialiser<>();
+	private List<Statistic> stats;
+	private ByteBuffer statsBytes;
+	
+	private byte[] bytesParam;
+	private ArrayList<String> listParam;
+	private WorkflowConfig workflow;
+	
+	@SuppressWarnings("rawtypes")
+	@Setup
+	public void setup() {
+		this.stats = new ArrayList<>();
+		for (int i = 0; i < this.size; i++) {
+			this.stats.add(new Statistic("worker-" + i, i * 1.5, i * 0.1, i + 1));
+		}
+		this.statsBytes = this.yaml.toByteBuffer(this.stats);
+		
+		this.bytesParam = new byte[this.size];
+		this.listParam = new ArrayList<>();
+		for (int i = 0; i < this.size / 10 + 1; i++) {
+			this.listParam.add("/data/input/file-" + i + ".pdf");
+		}
+		
+		// a linear workflow with the given number of steps
+		Map<String, Object> steps = new HashMap<>();
+		for (int i = 0; i < this.size; i++) {
+			Map<String, String> step = new HashMap<>();
+			step.put("next", "step-" + (i + 1));
+			steps.put("step-" + i, step);
+		}
+		Map<String, Object> options = new HashMap<>();
+		options.put("start", "step-0");
+		options.put("steps", steps);
+		Map<String, Object> data = new HashMap<>();
+		data.put("benchmark", options);
+		this.workflow = WorkflowConfig.parseWorkflows((Map) data).get("benchmark");
+	}
+	
+	@Benchmark
+	public ByteBuffer statisticsToYaml() {
+		return this.yaml.toByteBuffer(this.stats);
+	}
+	
+	@Benchmark
+	public List<Statistic> statisticsFromYaml() {
+		return this.yaml.fromByteBuffer(this.statsBytes.duplicate());
+	}
+	
+	@Benchmark
+	public Object bytesParameter() {
+		return roundTrip(this.bytesParam);
+	}
+	
+	@Benchmark
+	public Object listParameter() {
+		return roundTrip(this.listParam);
+	}
+	
+	@Benchmark
+	public Object workflowConfig() {
+		return roundTrip(this.workflow);
+	}
+	
+	private static Object roundTrip(Object value) {
+		ByteBuffer bytes = ObjectSerializer.get().toByteBuffer(value);
+		return ObjectSerializer.get().fromByteBuffer(bytes);
+	}
+}
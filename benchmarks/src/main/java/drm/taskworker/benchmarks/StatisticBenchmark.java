@@ -0,0 +1,78 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import drm.taskworker.monitoring.Statistic;
+
+/**
+ * The cost of building a statistic from samples and of merging statistics
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatisticBenchmark {
+	@Param({"10", "1000", "100000"})
+	public int samples;
+	
+	private List<Integer> values;
+	private List<Statistic> children;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		
+		this.values = new ArrayList<>();
+		for (int i = 0; i < this.samples; i++) {
+			this.values.add(random.nextInt(10000));
+		}
+		
+		// one child per ten samples, as reported by the nodes of a cluster
+		this.children = new ArrayList<>();
+		for (int i = 0; i < Math.max(1, this.samples / 10); i++) {
+			this.children.add(new Statistic("child", random.nextDouble() * 1000, random.nextDouble() * 100, 1 + random.nextInt(100)));
+		}
+	}
+	
+	@Benchmark
+	public Statistic fromSamples() {
+		return new Statistic("samples", this.values, 1000.0f);
+	}
+	
+	@Benchmark
+	public Statistic merge() {
+		return new Statistic("merged", this.children);
+	}
+}
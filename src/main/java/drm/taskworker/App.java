@@ -52,8 +52,16 @@ public class App {
 		
 		// start components
 		if (cfg().getProperty("taskworker.workers", true)) {
-			WorkerRegistration wr = new WorkerRegistration();
+			final WorkerRegistration wr = new WorkerRegistration();
 			wr.start();
+			
+			// release the tasks of this node when the JVM exits
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					wr.stop();
+				}
+			});
 		}
 		
 		if (cfg().getProperty("taskworker.scheduler", false) && cfg().getScheduler() != null) {
@@ -0,0 +1,197 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import static drm.taskworker.config.Config.cfg;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+
+/**
+ * A worker of which the work completes asynchronously, for work that mostly 
+ * waits on remote I/O. A thread starts tasks until the in flight limit of the
+ * worker is reached and the result of each task is processed when its future
+ * completes.
+ * 
+ * The process of an async worker returns once its tasks are started. Under the
+ * WorkerRuntime the instance and its permit are then free again, so the 
+ * threads of the worker type do not bound the number of running tasks: each
+ * instance can have up to its in flight limit of tasks running.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public abstract class AsyncWorker extends Worker {
+	/**
+	 * Processes the results of the async workers of this node, so the 
+	 * threads that complete the futures never wait on the queue
+	 */
+	private static final Executor completions = Executors.newFixedThreadPool(
+			cfg().getProperty("taskworker.worker.async.completers", 8), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "async-worker-completion");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	private int maxInFlight = 100;
+	private Semaphore inFlight = new Semaphore(this.maxInFlight);
+
+	/**
+	 * Create a new async worker with a name
+	 */
+	public AsyncWorker(String name) {
+		super(name);
+	}
+
+	/**
+	 * Start the work for the given task.
+	 * 
+	 * @return A future that completes with the result of the task
+	 */
+	public abstract ListenableFuture<TaskResult> workAsync(Task task);
+	
+	/**
+	 * Do the work for the given task and wait for its result
+	 */
+	@Override
+	public final TaskResult work(Task task) {
+		try {
+			return this.workAsync(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return failed(e);
+		} catch (ExecutionException e) {
+			return failed(cause(e));
+		}
+	}
+	
+	/**
+	 * Set the number of tasks of this worker instance that may be in flight
+	 * at the same time. Set it before the worker starts.
+	 */
+	public void setInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("An async worker requires at least one task in flight");
+		}
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+	
+	/**
+	 * Get the number of tasks of this worker instance that may be in flight
+	 */
+	public int getInFlight() {
+		return this.maxInFlight;
+	}
+	
+	/**
+	 * Start each task, waiting only while the in flight limit is reached. 
+	 * The results are processed when the tasks complete.
+	 */
+	@Override
+	void process(List<Task> tasks, Dispatcher dispatcher) {
+		for (Task task : tasks) {
+			this.inFlight.acquireUninterruptibly();
+			this.start(task, dispatcher);
+		}
+	}
+	
+	/**
+	 * Start a task and process its result when it completes
+	 */
+	private void start(final Task task, final Dispatcher dispatcher) {
+		final long started = System.nanoTime();
+		final TimerContext tc = Metrics.timer("worker.work." + this.getName()).time();
+		Metrics.counter("worker.inflight." + this.getName()).inc();
+		
+		trace("FETCHED", task);
+		task.setStartedAt();
+		
+		ListenableFuture<TaskResult> future;
+		try {
+			future = this.workAsync(task);
+		} catch (Exception e) {
+			this.finish(task, failed(e), dispatcher, started, tc);
+			return;
+		}
+		
+		final ListenableFuture<TaskResult> result = future;
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				TaskResult taskResult;
+				try {
+					taskResult = result.get();
+				} catch (ExecutionException e) {
+					taskResult = failed(cause(e));
+				} catch (Exception e) {
+					taskResult = failed(e);
+				}
+				finish(task, taskResult, dispatcher, started, tc);
+			}
+		}, completions);
+	}
+	
+	/**
+	 * Process the result of a task and free its place
+	 */
+	private void finish(Task task, TaskResult result, Dispatcher dispatcher, long started, TimerContext tc) {
+		try {
+			task.setFinishedAt();
+			this.complete(task, result);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, this.getName() + " failed to complete task " + task.getId(), e);
+		} finally {
+			// the tasks in flight on a thread share its time
+			long duration = System.nanoTime() - started;
+			int running = Math.max(1, this.maxInFlight - this.inFlight.availablePermits());
+			if (dispatcher != null) {
+				dispatcher.taskDone(duration / running, TimeUnit.NANOSECONDS);
+			}
+			
+			tc.stop();
+			Metrics.counter("worker.inflight." + this.getName()).dec();
+			this.inFlight.release();
+		}
+	}
+	
+	private static Exception cause(ExecutionException e) {
+		if (e.getCause() instanceof Exception) {
+			return (Exception)e.getCause();
+		}
+		return e;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+
+/**
+ * A worker that executes several tasks of its type at once. It gathers up 
+ * to lease batch tasks, waiting at most the batch wait time for the batch
+ * to fill, and executes them with one call. The result, timing and next 
+ * tasks of each task in the batch are processed as for a single task.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public abstract class BatchWorker extends Worker {
+	private long batchWait = 100;
+
+	/**
+	 * Create a new batch worker with a name
+	 */
+	public BatchWorker(String name) {
+		super(name);
+	}
+
+	/**
+	 * Do the work for the given tasks.
+	 * 
+	 * @return The result of each task, in the order of the tasks
+	 */
+	public abstract List<TaskResult> work(List<Task> tasks);
+	
+	/**
+	 * Do the work for a batch of one task
+	 */
+	@Override
+	public final TaskResult work(Task task) {
+		return this.work(Collections.singletonList(task)).get(0);
+	}
+	
+	/**
+	 * Set how long in milliseconds a batch waits for more tasks once it has
+	 * its first task
+	 */
+	public void setBatchWait(long batchWait) {
+		if (batchWait < 0) {
+			throw new IllegalArgumentException("The batch wait time should not be negative");
+		}
+		this.batchWait = batchWait;
+	}
+	
+	/**
+	 * Get how long in milliseconds a batch waits for more tasks
+	 */
+	public long getBatchWait() {
+		return this.batchWait;
+	}
+	
+	/**
+	 * Take the first task within the timeout and then more tasks until the
+	 * batch is full or the batch wait time has passed.
+	 */
+	@Override
+	List<Task> take(Dispatcher dispatcher, long timeout, TimeUnit unit) throws InterruptedException {
+		Task task = dispatcher.take(timeout, unit);
+		if (task == null) {
+			return Collections.emptyList();
+		}
+		
+		List<Task> tasks = new ArrayList<>(this.getLeaseBatch());
+		tasks.add(task);
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.batchWait);
+		while (tasks.size() < this.getLeaseBatch()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				break;
+			}
+			
+			task = dispatcher.take(remaining, TimeUnit.NANOSECONDS);
+			if (task == null) {
+				break;
+			}
+			tasks.add(task);
+		}
+		
+		return tasks;
+	}
+	
+	/**
+	 * Execute the tasks as one batch and process the result of each task
+	 */
+	@Override
+	void process(List<Task> tasks, Dispatcher dispatcher) {
+		TimerContext tc = Metrics.timer("worker.work." + this.getName()).time();
+		long started = System.currentTimeMillis();
+		long startedNanos = System.nanoTime();
+		Metrics.counter("worker.batch." + this.getName()).inc(tasks.size());
+		
+		for (Task task : tasks) {
+			task.setStartedAt();
+		}
+		
+		List<TaskResult> results = null;
+		Exception error = null;
+		try {
+			results = this.work(tasks);
+			if (results == null || results.size() != tasks.size()) {
+				throw new IllegalStateException("Batch worker " + this.getName() + " returned " 
+						+ (results == null ? 0 : results.size()) + " results for " + tasks.size() + " tasks");
+			}
+		} catch (Exception e) {
+			error = e;
+		}
+		
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = tasks.get(i);
+			task.setFinishedAt();
+			
+			TaskResult result = (error == null) ? results.get(i) : failed(error);
+			this.commit(task, result);
+		}
+		
+		// the threads of a batch worker finish a batch in the time of one task
+		if (dispatcher != null) {
+			dispatcher.taskDone((System.nanoTime() - startedNanos) / tasks.size(), TimeUnit.NANOSECONDS);
+		}
+		
+		tc.stop();
+		Metrics.counter("worker.busy." + this.getName()).inc(System.currentTimeMillis() - started);
+	}
+}
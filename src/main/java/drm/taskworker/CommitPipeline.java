@@ -0,0 +1,112 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+
+/**
+ * Commits the results of the tasks executed on this node, so a worker leases
+ * and starts its next task while the timing, joins and next tasks of the 
+ * previous one are written. The steps of one task are committed in order and
+ * the task is removed from the queue last; its lease is kept alive by the 
+ * heartbeat until then. At most maxPending results are buffered, after that 
+ * the workers wait for a commit to finish.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class CommitPipeline {
+	private static Logger logger = Logger.getLogger(CommitPipeline.class.getCanonicalName());
+	
+	private Semaphore pending;
+	private ExecutorService executor;
+	
+	public CommitPipeline(int committers, int maxPending) {
+		if (committers < 1 || maxPending < 1) {
+			throw new IllegalArgumentException("A commit pipeline requires at least one committer and one pending result");
+		}
+		
+		this.pending = new Semaphore(maxPending);
+		this.executor = Executors.newFixedThreadPool(committers, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "commit-pipeline");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Commit the result of a task executed by the given worker. Waits while 
+	 * the pipeline is full.
+	 */
+	public void submit(final Worker worker, final Task task, final TaskResult result) {
+		this.pending.acquireUninterruptibly();
+		Metrics.counter("commit.pending").inc();
+		
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						worker.complete(task, result);
+					} catch (Exception e) {
+						// the task is released, its lease expires and it is executed again
+						logger.log(Level.SEVERE, "Unable to commit the result of task " + task.getId(), e);
+					} finally {
+						Metrics.counter("commit.pending").dec();
+						pending.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the pipeline stopped, commit on the thread of the worker
+			Metrics.counter("commit.pending").dec();
+			this.pending.release();
+			worker.complete(task, result);
+		}
+	}
+	
+	/**
+	 * Stop accepting results and wait for the pending commits
+	 */
+	public void stop() {
+		this.executor.shutdown();
+		try {
+			if (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.warning("Commit pipeline stopped with pending results");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.config.IdleStrategy;
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Leases tasks for all worker threads of one worker type on this node. The 
+ * dispatcher leases in batches ahead of demand and hands the tasks to the 
+ * worker threads through an in-memory buffer, so the threads of a node do 
+ * not compete for the queue and do not wait for the database when there is
+ * work.
+ * 
+ * The number of prefetched tasks adapts to the measured task duration: enough
+ * to keep every thread busy, but not so many that a task waits in the buffer
+ * for more than half of its lease. The threads of a batch worker always get
+ * enough tasks to fill their batches.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class Dispatcher implements Runnable {
+	private static Logger logger = Logger.getLogger(Dispatcher.class.getCanonicalName());
+	
+	// weight of a new measurement in the average task duration
+	private static final double ALPHA = 0.2;
+	
+	private String workerType;
+	private Service service;
+	private long leaseNanos;
+	private int maxPrefetch;
+	private int batch;
+	private long idleTime;
+	private IdleStrategy idle;
+	
+	private LinkedBlockingQueue<Task> buffer;
+	private AtomicInteger threads = new AtomicInteger();
+	private volatile double avgDuration = 0;
+	private Object demand = new Object();
+	private volatile boolean running = true;
+	private Thread thread;
+	
+	/**
+	 * Create and start a dispatcher for the given worker type
+	 * 
+	 * @param lease The time tasks are leased for
+	 * @param maxPrefetch The maximum number of tasks in the buffer, unless 
+	 * 			more tasks are needed to fill the batches of all threads
+	 * @param batch The number of tasks a worker thread takes at once
+	 * @param idleTime The time in milliseconds after which the buffer is 
+	 * 			checked again when no task was taken
+	 * @param idle How long to wait for a work signal when a lease found no
+	 * 			work
+	 */
+	public Dispatcher(Service service, String workerType, long lease, TimeUnit unit, 
+			int maxPrefetch, int batch, long idleTime, IdleStrategy idle) {
+		if (maxPrefetch < 1) {
+			throw new IllegalArgumentException("The dispatcher should prefetch at least one task");
+		}
+		if (batch < 1) {
+			throw new IllegalArgumentException("A worker thread takes at least one task at once");
+		}
+		
+		this.service = service;
+		this.workerType = workerType;
+		this.leaseNanos = unit.toNanos(lease);
+		this.maxPrefetch = maxPrefetch;
+		this.batch = batch;
+		this.idleTime = idleTime;
+		this.idle = idle;
+		
+		// the size of the buffer is bounded by the prefetch depth
+		this.buffer = new LinkedBlockingQueue<>();
+		
+		this.thread = new Thread(this, "dispatcher-" + workerType);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	/**
+	 * Register a worker thread that takes tasks from this dispatcher
+	 */
+	public void register() {
+		this.threads.incrementAndGet();
+		this.wakeUp();
+	}
+	
+	/**
+	 * Unregister a worker thread. The tasks in the buffer are released when
+	 * the last thread leaves, nobody would take them.
+	 */
+	public void unregister() {
+		if (this.threads.decrementAndGet() == 0) {
+			this.release();
+		}
+	}
+	
+	/**
+	 * Take a prefetched task, waiting at most the given time for one.
+	 * 
+	 * @return A task or null if no task became available
+	 */
+	public Task take(long timeout, TimeUnit unit) throws InterruptedException {
+		Task task = this.buffer.poll(timeout, unit);
+		this.wakeUp();
+		return task;
+	}
+	
+	/**
+	 * Report how long a worker thread was busy with a task
+	 */
+	public void taskDone(long duration, TimeUnit unit) {
+		long nanos = unit.toNanos(duration);
+		synchronized (this) {
+			if (this.avgDuration == 0) {
+				this.avgDuration = nanos;
+			} else {
+				this.avgDuration = (1 - ALPHA) * this.avgDuration + ALPHA * nanos;
+			}
+		}
+	}
+	
+	/**
+	 * The number of tasks that are leased but not taken by a worker thread
+	 */
+	public int getBuffered() {
+		return this.buffer.size();
+	}
+	
+	/**
+	 * The number of tasks the dispatcher tries to keep in the buffer
+	 */
+	public int getPrefetch() {
+		return prefetch(this.threads.get(), this.batch, this.leaseNanos, this.avgDuration, this.maxPrefetch);
+	}
+	
+	/**
+	 * Calculate the prefetch depth. The last task in a buffer of n tasks that
+	 * is consumed by t threads waits about n/t task durations, which should
+	 * stay below half of the lease. Threads that take batches of more than 
+	 * one task need a full batch each, even when that is above the maximum.
+	 */
+	static int prefetch(int threads, int batch, long leaseNanos, double avgDuration, int maxPrefetch) {
+		if (threads < 1) {
+			return 0;
+		}
+		
+		int min = threads;
+		int depth = Math.min(min, maxPrefetch);
+		if (avgDuration > 0) {
+			depth = (int) Math.max(Math.min(min * (leaseNanos / 2.0) / avgDuration, maxPrefetch), depth);
+		}
+		
+		if (batch > 1) {
+			depth = Math.max(depth, threads * batch);
+		}
+		return depth;
+	}
+	
+	private void wakeUp() {
+		synchronized (this.demand) {
+			this.demand.notifyAll();
+		}
+	}
+
+	/**
+	 * Lease tasks when the buffer drops below the prefetch depth
+	 */
+	@Override
+	public void run() {
+		WorkSignal signal = this.service.getWorkSignal();
+		int emptyLeases = 0;
+		
+		while (this.running) {
+			try {
+				synchronized (this.demand) {
+					if (this.buffer.size() >= this.getPrefetch()) {
+						this.demand.wait(this.idleTime);
+						continue;
+					}
+				}
+				
+				long version = signal.getVersion(this.workerType);
+				int wanted = this.getPrefetch() - this.buffer.size();
+				
+				TimerContext tc = Metrics.timer("dispatcher.lease." + this.workerType).time();
+				List<Task> tasks = this.service.getTasks(this.workerType, wanted);
+				tc.stop();
+				
+				if (tasks.isEmpty()) {
+					// lease again right away while tasks keep arriving, back
+					// off while there are none
+					emptyLeases++;
+					long waitStart = System.currentTimeMillis();
+					signal.await(this.workerType, version, this.idle.getIdleTime(emptyLeases), TimeUnit.MILLISECONDS);
+					Metrics.counter("worker.idle." + this.workerType).inc(System.currentTimeMillis() - waitStart);
+				} else {
+					emptyLeases = 0;
+					Metrics.counter("dispatcher.prefetched." + this.workerType).inc(tasks.size());
+					for (Task task : tasks) {
+						this.buffer.put(task);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Dispatcher for " + this.workerType + " failed", e);
+				try {
+					Thread.sleep(this.idleTime);
+				} catch (InterruptedException e1) {
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stop leasing tasks and release the tasks that are still in the buffer
+	 */
+	public void stop() {
+		this.running = false;
+		this.thread.interrupt();
+		
+		// a lease in progress still fills the buffer
+		try {
+			this.thread.join(TimeUnit.NANOSECONDS.toMillis(this.leaseNanos));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.release();
+	}
+	
+	/**
+	 * Stop renewing the leases of the buffered tasks, so they expire and are
+	 * leased again
+	 */
+	private void release() {
+		List<Task> tasks = new ArrayList<>();
+		this.buffer.drainTo(tasks);
+		for (Task task : tasks) {
+			this.service.releaseTask(task);
+		}
+		if (!tasks.isEmpty()) {
+			logger.info("Released " + tasks.size() + " buffered tasks of " + this.workerType);
+		}
+	}
+}
@@ -25,6 +25,9 @@ import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 import org.yaml.snakeyaml.Yaml;
@@ -86,16 +89,30 @@ public class Entities {
 	private static synchronized Keyspace setupCassandra() {
 		String seed = cfg().getProperty("taskworker.cassandra.seed", "127.0.0.1:9610");
 		logger.info("Connecting to cassandra seed(s): " + seed);
+		
+		// the thrift driver executes async queries on a thread of this pool, 
+		// so its size bounds the writes that are really in flight
+		ExecutorService async = Executors.newFixedThreadPool(cfg().getProperty("taskworker.writes.inflight", 64), 
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "cassandra-async");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		
 		AstyanaxContext<Keyspace> context = new AstyanaxContext.Builder()
 			.forCluster("Test Cluster").
 			forKeyspace("taskworker")
 			.withAstyanaxConfiguration(new AstyanaxConfigurationImpl()
 				.setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
-				.setCqlVersion("3.0.0").setTargetCassandraVersion("1.2"))
+				.setCqlVersion("3.0.0").setTargetCassandraVersion("1.2")
+				.setAsyncExecutor(async))
 				.withConnectionPoolConfiguration(
 					new ConnectionPoolConfigurationImpl("TaskWorkerConnectionPool")
 						.setPort(9160)
-						.setMaxConnsPerHost(1)
+						.setMaxConnsPerHost(cfg().getProperty("taskworker.cassandra.connections", 8))
 						.setSeeds(seed))
 				.withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
 				.buildKeyspace(ThriftFamilyFactory.getInstance());
@@ -120,16 +137,22 @@ public class Entities {
 				 * 			1 - end task
 				 * 			100 - deleted
 				 */
-				queries.add("CREATE TABLE task (id uuid, job_id uuid, created_at timestamp, worker_name text, PRIMARY KEY (job_id, id))");
+				queries.add("CREATE TABLE task (id uuid, job_id uuid, created_at timestamp, worker_name text, priority text, attempts int, PRIMARY KEY (job_id, id))");
 				queries.add("CREATE INDEX task_worker ON task(worker_name)");
 				queries.add("CREATE TABLE task_timing (id uuid, started_at timestamp, finished_at timestamp, PRIMARY KEY (id))");
 				queries.add("CREATE TABLE task_queue (id uuid, queue_id text, leased_until timestamp, removed boolean, PRIMARY KEY(queue_id, id))");
+				queries.add("CREATE TABLE task_delay (queue_id text, visible_after timestamp, id uuid, PRIMARY KEY(queue_id, visible_after, id))");
 				queries.add("CREATE TABLE task_parent (id uuid, job_id uuid, parent_id uuid, PRIMARY KEY((job_id, id), parent_id))");
 				queries.add("CREATE TABLE job (job_id uuid, start_task_id uuid, workflow_name text, start_after timestamp, finish_before timestamp, finished boolean, started boolean, failed boolean, started_at timestamp, finished_at timestamp, stats blob, configuration blob, PRIMARY KEY(job_id, start_after, finish_before))");
 				queries.add("CREATE INDEX job_started ON job (started)");
 				queries.add("CREATE INDEX job_finished ON job (finished)");
 				queries.add("CREATE TABLE priorities (job_id uuid, worker_type text, weight float, PRIMARY KEY(worker_type, job_id))");
-				queries.add("CREATE TABLE join (job_id uuid, join_id uuid, n_tasks counter, primary KEY (job_id, join_id));");
+				queries.add("CREATE TABLE join (job_id uuid, join_id uuid, n_tasks int, primary KEY (job_id, join_id));");
+				queries.add("CREATE TABLE join_done (job_id uuid, join_id uuid, n_done counter, primary KEY (job_id, join_id));");
+				queries.add("CREATE TABLE dead_letter (worker_type text, job_id uuid, id uuid, attempts int, failed_at timestamp, result text, PRIMARY KEY (worker_type, job_id, id))");
+				queries.add("CREATE TABLE active_queue (worker_type text, job_id uuid, PRIMARY KEY (worker_type, job_id))");
+				queries.add("CREATE TABLE work_marker (worker_type text, marked_at bigint, PRIMARY KEY (worker_type))");
+				queries.add("CREATE TABLE queue_depth (worker_type text, job_id uuid, pending counter, leased counter, PRIMARY KEY (worker_type, job_id))");
 				
 				for (String q : queries) {
 					logger.info("Executing query for creating taskworker keyspace: " + q);
@@ -0,0 +1,120 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Runs the single next task of a task in process when its worker type runs 
+ * on this node and has a free permit, instead of storing it and leasing it
+ * again. The next task runs with its parameters in memory and is not stored.
+ * 
+ * The leased task at the head of such a chain stays in the queue, with its 
+ * lease renewed by the heartbeat, until the chain reaches a checkpoint: a 
+ * task with no or several next tasks, a failed task or every checkpoint hops.
+ * The task at the checkpoint and its next tasks are then stored and the head
+ * is removed from the queue. The timing of the head marks it as finished for
+ * the reaper, so it is also written at the checkpoint. When the node fails 
+ * the lease of the head expires and the chain is executed again from it.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class Fusion {
+	/**
+	 * The leased task a fused task descends from and the hops since it
+	 */
+	private static class Chain {
+		private Task head;
+		private int hops;
+		
+		public Chain(Task head, int hops) {
+			this.head = head;
+			this.hops = hops;
+		}
+	}
+	
+	private WorkerRuntime runtime;
+	private int checkpoint;
+	private ConcurrentMap<UUID, Chain> chains = new ConcurrentHashMap<>();
+	
+	public Fusion(WorkerRuntime runtime, int checkpoint) {
+		if (checkpoint < 1) {
+			throw new IllegalArgumentException("A fused chain requires at least one hop between checkpoints");
+		}
+		this.runtime = runtime;
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * Run the next task of the given task in process
+	 * 
+	 * @return False when the next task has to be queued: the worker type of
+	 * 			the next task has no free permit or the chain is due for a 
+	 * 			checkpoint
+	 */
+	public boolean fuse(Task task, Task next) {
+		Chain chain = this.chains.get(task.getId());
+		Task head = (chain == null) ? task : chain.head;
+		int hops = (chain == null) ? 1 : chain.hops + 1;
+		if (hops > this.checkpoint) {
+			return false;
+		}
+		
+		// register the chain first, the next task may finish right away
+		this.chains.put(next.getId(), new Chain(head, hops));
+		if (!this.runtime.tryExecute(next)) {
+			this.chains.remove(next.getId());
+			return false;
+		}
+		
+		this.chains.remove(task.getId());
+		Metrics.counter("fusion.hops").inc();
+		Metrics.counter("fusion.hops." + next.getWorker()).inc();
+		return true;
+	}
+	
+	/**
+	 * Check if a task was run in process and is not stored
+	 */
+	public boolean isFused(Task task) {
+		return this.chains.containsKey(task.getId());
+	}
+	
+	/**
+	 * End the chain of the given task
+	 * 
+	 * @return The leased task at the head of the chain or null when the task
+	 * 			was not run in process
+	 */
+	public Task release(Task task) {
+		Chain chain = this.chains.remove(task.getId());
+		if (chain == null) {
+			return null;
+		}
+		Metrics.counter("fusion.checkpoints").inc();
+		return chain.head;
+	}
+}
@@ -19,8 +19,6 @@
 
 package drm.taskworker;
 
-import static drm.taskworker.Entities.cs;
-
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -34,6 +32,7 @@ import java.util.logging.Logger;
 import com.netflix.astyanax.connectionpool.OperationResult;
 import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
 import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
 import com.netflix.astyanax.model.CqlResult;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.serializers.ObjectSerializer;
@@ -224,10 +223,8 @@ public class Job {
 	 */
 	public void insert() {
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("INSERT INTO job (job_id, start_task_id, workflow_name, start_after, finish_before, " + 
+			Statements.prepare("INSERT INTO job (job_id, start_task_id, workflow_name, start_after, finish_before, " + 
 						"started, finished, failed, configuration) VALUES (?, ?, ?, ?, ?, false, false, false, ?);")
-				.asPreparedStatement()
 				.withUUIDValue(this.getJobId())
 				.withUUIDValue(this.getStartTask().getId())
 				.withStringValue(this.workflowName)
@@ -245,9 +242,7 @@ public class Job {
 	 */
 	public static Job load(UUID jobId) {
 		try {
-			OperationResult<CqlResult<String, String>> result = cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("SELECT * FROM job WHERE job_id = ?")
-				.asPreparedStatement()
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT * FROM job WHERE job_id = ?")
 				.withUUIDValue(jobId)
 				.execute();
 			
@@ -266,9 +261,7 @@ public class Job {
 	public static List<Job> getJobsThatShouldStart() {
 		List<Job> jobs = new ArrayList<>();
 		try {
-			OperationResult<CqlResult<String, String>> result = cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("SELECT * FROM job WHERE started = false AND start_after < ?")
-				.asPreparedStatement()
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT * FROM job WHERE started = false AND start_after < ?")
 				.withLongValue(System.currentTimeMillis())
 				.execute();
 		
@@ -329,9 +322,7 @@ public class Job {
 		this.isStarted = true;
 		
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("UPDATE job SET started = ?, started_at = ? WHERE job_id = ? AND start_after = ? AND finish_before = ?")
-				.asPreparedStatement()
+			Statements.prepare("UPDATE job SET started = ?, started_at = ? WHERE job_id = ? AND start_after = ? AND finish_before = ?")
 				.withBooleanValue(this.isStarted)
 				.withLongValue(this.startedAt.getTime())
 				
@@ -368,9 +359,7 @@ public class Job {
 		this.finishedAt = finishedAt;
 		this.isFinished = true;
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("UPDATE job SET finished = ?, finished_at = ? WHERE job_id = ? AND start_after = ? AND finish_before = ?")
-				.asPreparedStatement()
+			Statements.prepare("UPDATE job SET finished = ?, finished_at = ? WHERE job_id = ? AND start_after = ? AND finish_before = ?")
 				.withBooleanValue(this.isFinished)
 				.withLongValue(this.finishedAt.getTime())
 
@@ -388,10 +377,8 @@ public class Job {
 	 */
 	public List<Task> getHistory() {
 		try {
-			OperationResult<CqlResult<String, String>> result = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT * FROM task WHERE job_id = ?;")
-					.asPreparedStatement().withUUIDValue(getJobId())
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT * FROM task WHERE job_id = ?;")
+					.withUUIDValue(getJobId())
 					.execute();
 
 			List<Task> tasks = new ArrayList<>();
@@ -437,9 +424,7 @@ public class Job {
 		this.stats = out;
 
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql("UPDATE job SET stats = ? WHERE job_id = ? AND start_after = ? AND finish_before = ?")
-					.asPreparedStatement()
+			Statements.prepare("UPDATE job SET stats = ? WHERE job_id = ? AND start_after = ? AND finish_before = ?")
 					.withByteBufferValue(out, Entities.STATS_SERIALISER)
 					.withUUIDValue(getJobId())
 					.withLongValue(this.startAfter)
@@ -483,18 +468,20 @@ public class Job {
 	}
 	
 	/**
-	 * Store the join id for a job
+	 * Store the join id for a job. The number of tasks is written and not 
+	 * counted, so a split that is executed again does not count its tasks 
+	 * twice.
 	 */
 	public static void storeJoin(UUID jobId, UUID joinId, int number_tasks) {
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql("UPDATE join SET n_tasks = n_tasks + " + number_tasks + " WHERE job_id = ? AND join_id = ?")
-					.asPreparedStatement()
+			Statements.prepare(ConsistencyLevel.CL_QUORUM, "INSERT INTO join (job_id, join_id, n_tasks) VALUES (?, ?, ?)")
 					.withUUIDValue(jobId)
 					.withUUIDValue(joinId)
+					.withIntegerValue(number_tasks)
 					.execute();
 		} catch (ConnectionException e) {
-			e.printStackTrace();
+			// the tasks of the split are not queued without their join
+			throw new IllegalStateException(e);
 		}
 	}
 	
@@ -503,9 +490,7 @@ public class Job {
 	 */
 	public static void decrementJoin(UUID jobId, UUID joinId) {
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql("UPDATE join SET n_tasks = n_tasks - 1 WHERE job_id = ? AND join_id = ?")
-					.asPreparedStatement()
+			Statements.prepare("UPDATE join_done SET n_done = n_done + 1 WHERE job_id = ? AND join_id = ?")
 					.withUUIDValue(jobId)
 					.withUUIDValue(joinId)
 					.execute();
@@ -515,20 +500,29 @@ public class Job {
 	}
 	
 	/**
-	 * Get the current join count
+	 * Get the current join count: the number of tasks of the join that did
+	 * not finish yet
 	 */
 	public static int getJoinCount(UUID jobId, UUID joinId) {
 		try {
-			OperationResult<CqlResult<String, String>> result = cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT join_id, n_tasks FROM join WHERE job_id = ? AND join_id = ?")
-					.asPreparedStatement()
+			int count = 0;
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT join_id, n_tasks FROM join WHERE job_id = ? AND join_id = ?")
 					.withUUIDValue(jobId)
 					.withUUIDValue(joinId)
 					.execute();
+			for (Row<String, String> row : result.getResult().getRows()) {
+				count = row.getColumns().getIntegerValue("n_tasks", 0);
+			}
 			
+			result = Statements.prepare("SELECT join_id, n_done FROM join_done WHERE job_id = ? AND join_id = ?")
+					.withUUIDValue(jobId)
+					.withUUIDValue(joinId)
+					.execute();
 			for (Row<String, String> row : result.getResult().getRows()) {
-				return row.getColumns().getLongValue("n_tasks", 0L).intValue();
+				count -= row.getColumns().getLongValue("n_done", 0L).intValue();
 			}
+			
+			return count;
 		} catch (ConnectionException e) {
 			e.printStackTrace();
 		}
@@ -540,9 +534,7 @@ public class Job {
 	 */
 	public static List<Job> getAll() {
 		try {
-			OperationResult<CqlResult<String, String>> result = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT * FROM job;").asPreparedStatement()
+			OperationResult<CqlResult<String, String>> result = Statements.query("SELECT * FROM job;")
 					.execute();
 
 			List<Job> workflows = new ArrayList<>();
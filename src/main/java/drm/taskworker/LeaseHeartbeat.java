@@ -0,0 +1,139 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.queue.QueueBackend;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Keeps the leases of the tasks that are leased on this node alive. All 
+ * tracked tasks are renewed together a few times per lease period, so a task 
+ * that runs longer than its lease is not leased and executed by a second 
+ * worker. The renewal of all tasks on a node is a single batched call to the
+ * queue.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class LeaseHeartbeat implements Runnable {
+	private static Logger logger = Logger.getLogger(LeaseHeartbeat.class.getCanonicalName());
+	
+	private static final int BEATS_PER_LEASE = 3;
+	
+	private QueueBackend queue;
+	private long lease;
+	private TimeUnit unit;
+	private ConcurrentMap<UUID, Task> tasks = new ConcurrentHashMap<>();
+	private ScheduledExecutorService executor;
+	
+	/**
+	 * Create a heartbeat that renews the tracked tasks for the given lease 
+	 * time. The leases are renewed BEATS_PER_LEASE times during a lease.
+	 */
+	public LeaseHeartbeat(QueueBackend queue, long lease, TimeUnit unit) {
+		long interval = unit.toMillis(lease) / BEATS_PER_LEASE;
+		if (interval < 1) {
+			throw new IllegalArgumentException("The lease is too short to renew");
+		}
+		
+		this.queue = queue;
+		this.lease = lease;
+		this.unit = unit;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "lease-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Renew the lease of the given task until it is removed
+	 */
+	public void add(Task task) {
+		this.tasks.put(task.getId(), task);
+	}
+	
+	/**
+	 * Stop renewing the lease of the given task. A renewal that is in 
+	 * progress may still write the lease of the task, the finished marker of
+	 * the queue keeps a finished task from being leased again.
+	 */
+	public void remove(Task task) {
+		this.tasks.remove(task.getId());
+	}
+	
+	/**
+	 * The number of tasks of which the lease is renewed
+	 */
+	public int size() {
+		return this.tasks.size();
+	}
+	
+	/**
+	 * Renew the leases of all tracked tasks. The tasks are copied first, so
+	 * adding and removing tasks does not wait for the renewal.
+	 */
+	@Override
+	public void run() {
+		this.renew(new ArrayList<>(this.tasks.values()));
+	}
+	
+	private void renew(List<Task> running) {
+		if (running.isEmpty()) {
+			return;
+		}
+		
+		TimerContext tc = Metrics.timer("lease.heartbeat").time();
+		try {
+			this.queue.renewLeases(running, this.lease, this.unit);
+			Metrics.counter("lease.renewed").inc(running.size());
+		} catch (Exception e) {
+			// an exception would cancel the next beats
+			logger.log(Level.WARNING, "Unable to renew the leases of " + running.size() + " tasks", e);
+		} finally {
+			tc.stop();
+		}
+	}
+	
+	/**
+	 * Stop renewing leases
+	 */
+	public void stop() {
+		this.executor.shutdownNow();
+	}
+}
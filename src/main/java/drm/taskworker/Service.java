@@ -19,30 +19,51 @@
 
 package drm.taskworker;
 
-import static drm.taskworker.Entities.cs;
+import static drm.taskworker.config.Config.cfg;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.netflix.astyanax.connectionpool.OperationResult;
 import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
 import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
 import com.netflix.astyanax.model.CqlResult;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.query.PreparedCqlQuery;
 
+import drm.taskworker.config.BackoffIdleStrategy;
+import drm.taskworker.config.IdleStrategy;
+import drm.taskworker.config.WorkerConfig;
 import drm.taskworker.config.WorkflowConfig;
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.queue.MemoryQueue;
 import drm.taskworker.queue.Queue;
+import drm.taskworker.queue.QueueBackend;
+import drm.taskworker.queue.QueueDepth;
 import drm.taskworker.queue.TaskHandle;
 import drm.taskworker.schedule.WeightedRoundRobin;
 import drm.taskworker.tasks.JobStateListener;
 import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
 
 /**
  * This class implements a workflow service. This service should be stateless
@@ -69,12 +90,69 @@ public class Service {
 		return serviceInstance;
 	}
 
-	public Queue queue = new Queue("task-queue");
+	public QueueBackend queue = createQueue();
+	
+	private long lease = cfg().getProperty("taskworker.lease", 15);
+	private LeaseHeartbeat heartbeat = null;
+	private WorkSignal signal = new WorkSignal();
+	private WorkMarker marker = null;
+	private ConcurrentMap<String, Dispatcher> dispatchers = new ConcurrentHashMap<>();
+	private WritePipeline writes = new WritePipeline(cfg().getProperty("taskworker.writes.inflight", 64));
+	private CommitPipeline commits = null;
+	private Fusion fusion = null;
+	private ExecutorService queueExecutor = Executors.newFixedThreadPool(
+			cfg().getProperty("taskworker.writes.queuers", 8), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "queue-task");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
 	/**
 	 * Create a new instance of the workflow service.
 	 */
 	private Service() {
+		if (this.queue instanceof JobStateListener) {
+			this.addWorkflowStateListener((JobStateListener)this.queue);
+		}
+		
+		if (cfg().getProperty("taskworker.lease.heartbeat", false)) {
+			this.heartbeat = new LeaseHeartbeat(this.queue, this.lease, TimeUnit.SECONDS);
+			
+			// a result can only wait for its commit while its lease is renewed
+			if (cfg().getProperty("taskworker.commit.pipeline", false)) {
+				this.commits = new CommitPipeline(cfg().getProperty("taskworker.commit.threads", 4),
+						cfg().getProperty("taskworker.commit.pending", 256));
+			}
+		}
+		
+		// other nodes only learn about queued work through the markers
+		if (cfg().getProperty("taskworker.distributed", false)) {
+			this.marker = new WorkMarker(this.signal, cfg().getProperty("taskworker.signal.interval", 100));
+		}
+	}
+	
+	/**
+	 * Create the queue backend that is configured with the taskworker.queue
+	 * property. The memory backend can only be used when all workers run in
+	 * a single JVM.
+	 */
+	private static QueueBackend createQueue() {
+		String backend = cfg().getProperty("taskworker.queue", "cassandra");
+		
+		if (backend.equals("memory")) {
+			if (cfg().getProperty("taskworker.distributed", false)) {
+				throw new IllegalStateException("The memory queue cannot be used in a distributed setup");
+			}
+			logger.info("Using an in-memory task queue");
+			return new MemoryQueue();
+		} else if (backend.equals("cassandra")) {
+			return new Queue("task-queue");
+		}
+		
+		throw new IllegalArgumentException("Unknown queue backend " + backend);
 	}
 
 	/**
@@ -136,6 +214,228 @@ public class Service {
 		
 		// set the task as scheduled
 		this.queue.addTask(task);
+		this.signalWork(task.getWorker());
+	}
+	
+	/**
+	 * Queue a new task without waiting for it. The rows of the task are sent
+	 * together and the task is only added to the queue when all its rows 
+	 * are written, so a worker never leases a task that cannot be loaded.
+	 * 
+	 * @return A future that completes when the task is in the queue
+	 */
+	public ListenableFuture<Task> queueTaskAsync(Task task) {
+		return this.queueTaskAsync(task, false);
+	}
+	
+	/**
+	 * Queue a new task once its rows are written
+	 * 
+	 * @param once Do not add a task that is already in the queue
+	 */
+	private ListenableFuture<Task> queueTaskAsync(final Task task, final boolean once) {
+		final SettableFuture<Task> queued = SettableFuture.create();
+		final ListenableFuture<?> saved = this.writes.submitAll(task.saveQueries());
+		
+		saved.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					saved.get();
+					if (once) {
+						queue.addTaskIfAbsent(task);
+					} else {
+						queue.addTask(task);
+					}
+					signalWork(task.getWorker());
+					queued.set(task);
+				} catch (ExecutionException e) {
+					queued.setException(e.getCause());
+				} catch (Exception e) {
+					queued.setException(e);
+				}
+			}
+		}, this.queueExecutor);
+		
+		return queued;
+	}
+	
+	/**
+	 * Queue new tasks and wait until all of them are in the queue. The 
+	 * writes of all tasks are pipelined, so a fan-out takes about the time of 
+	 * a few round-trips instead of a few round-trips per task. A task that is
+	 * already in the queue is not added again, so the tasks can be queued 
+	 * again after some of them failed.
+	 */
+	public void queueTasks(List<Task> tasks) {
+		List<ListenableFuture<Task>> queued = new ArrayList<>();
+		for (Task task : tasks) {
+			queued.add(this.queueTaskAsync(task, true));
+		}
+		
+		try {
+			Futures.allAsList(queued).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unable to queue " + tasks.size() + " tasks", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while queueing " + tasks.size() + " tasks", e);
+		}
+	}
+	
+	/**
+	 * Wake up the idle workers of the given worker type on this node and, in
+	 * a distributed setup, on the other nodes
+	 */
+	public void signalWork(String workerType) {
+		this.signal.signal(workerType);
+		if (this.marker != null) {
+			this.marker.mark(workerType);
+		}
+	}
+	
+	/**
+	 * Get the dispatcher that leases tasks for all workers of the given type
+	 * on this node. The dispatcher is started when it is first requested.
+	 * 
+	 * @return The dispatcher or null when taskworker.dispatcher is disabled
+	 */
+	public Dispatcher getDispatcher(String workerType) {
+		if (!cfg().getProperty("taskworker.dispatcher", false)) {
+			return null;
+		}
+		
+		Dispatcher dispatcher = this.dispatchers.get(workerType);
+		if (dispatcher == null) {
+			synchronized (this.dispatchers) {
+				dispatcher = this.dispatchers.get(workerType);
+				if (dispatcher == null) {
+					// only create the dispatcher once, it starts a thread
+					dispatcher = new Dispatcher(this, workerType, this.lease, TimeUnit.SECONDS, 
+							cfg().getProperty("taskworker.dispatcher.prefetch", 100),
+							this.getLeaseBatch(workerType),
+							cfg().getProperty("taskworker.worker.idle", 1000),
+							this.getIdleStrategy(workerType));
+					this.dispatchers.put(workerType, dispatcher);
+				}
+			}
+		}
+		return dispatcher;
+	}
+	
+	/**
+	 * Stop all dispatchers on this node and release their buffered tasks
+	 */
+	public void stopDispatchers() {
+		synchronized (this.dispatchers) {
+			for (Dispatcher dispatcher : this.dispatchers.values()) {
+				dispatcher.stop();
+			}
+			this.dispatchers.clear();
+		}
+	}
+	
+	/**
+	 * Stop the background work of this node: the dispatchers, the lease 
+	 * heartbeat and the work marker. The heartbeat stops after the 
+	 * dispatchers released their buffered tasks.
+	 */
+	public void stop() {
+		this.stopDispatchers();
+		
+		if (this.heartbeat != null) {
+			this.heartbeat.stop();
+		}
+		if (this.marker != null) {
+			this.marker.stop();
+		}
+	}
+	
+	/**
+	 * The idle strategy that is configured for a worker type
+	 */
+	private IdleStrategy getIdleStrategy(String workerType) {
+		Map<String, WorkerConfig> workers = cfg().getWorkers();
+		if (workers != null && workers.containsKey(workerType)) {
+			return workers.get(workerType).getIdleStrategy();
+		}
+		return new BackoffIdleStrategy();
+	}
+	
+	/**
+	 * The number of tasks a thread of a worker type takes at once
+	 */
+	private int getLeaseBatch(String workerType) {
+		Map<String, WorkerConfig> workers = cfg().getWorkers();
+		if (workers != null && workers.containsKey(workerType)) {
+			return Math.max(1, workers.get(workerType).getLeaseBatch());
+		}
+		return 1;
+	}
+	
+	/**
+	 * Get the pipeline that commits the results of the tasks executed on 
+	 * this node
+	 * 
+	 * @return The pipeline or null when the results are committed by the 
+	 * 			worker threads
+	 */
+	public CommitPipeline getCommitPipeline() {
+		return this.commits;
+	}
+	
+	/**
+	 * Set the runtime that runs the workers on this node. The runtime also 
+	 * runs fused tasks when taskworker.fusion is set; fusion requires the 
+	 * lease heartbeat to keep the head of a chain leased.
+	 */
+	public void setWorkerRuntime(WorkerRuntime runtime) {
+		if (cfg().getProperty("taskworker.fusion", false) && this.heartbeat != null) {
+			this.fusion = new Fusion(runtime, cfg().getProperty("taskworker.fusion.checkpoint", 10));
+		}
+	}
+	
+	/**
+	 * Get the fusion that runs the next task of a task in process
+	 * 
+	 * @return The fusion or null when it is disabled
+	 */
+	public Fusion getFusion() {
+		return this.fusion;
+	}
+	
+	/**
+	 * Save the timing of a task without waiting for the write
+	 */
+	public void saveTimingAsync(Task task) {
+		this.writes.submit(task.saveTimingQuery());
+	}
+	
+	/**
+	 * Get the signal that wakes up idle workers on this node
+	 */
+	public WorkSignal getWorkSignal() {
+		return this.signal;
+	}
+	
+	/**
+	 * Queue a new task that can only be leased after the given delay. Use 
+	 * this instead of sleeping in a worker to retry or poll later.
+	 * 
+	 * @param task
+	 *            The task to queue
+	 * @param delay
+	 *            The time before the task becomes visible to workers
+	 * @param unit
+	 *            The timeunit of the delay
+	 */
+	public void queueTask(Task task, long delay, TimeUnit unit) {
+		task.save();
+		
+		this.queue.addTask(task, System.currentTimeMillis() + unit.toMillis(delay));
+		if (delay <= 0) {
+			this.signalWork(task.getWorker());
+		}
 	}
 
 	/**
@@ -148,20 +448,59 @@ public class Service {
 	 * @return A task or null if no task available
 	 */
 	public Task getTask(UUID workflowId, String workerType) {
-		List<TaskHandle> tasks;
+		List<Task> tasks = getTasks(workflowId, workerType, 1);
+		
+		if (!tasks.isEmpty()) {
+			return tasks.get(0);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get a batch of tasks from the task queue. All tasks are leased with a 
+	 * single lease operation on the queue. The leases are renewed by the 
+	 * heartbeat until the task is deleted or released.
+	 * 
+	 * @param workflowId
+	 *            The workflow id or null for all workflows
+	 * @param workerType
+	 *            The type of worker
+	 * @param limit
+	 *            The maximum number of tasks to lease
+	 * @return A list of tasks, empty if no task is available
+	 */
+	public List<Task> getTasks(UUID workflowId, String workerType, int limit) {
+		List<Task> tasks = new ArrayList<>();
+		boolean loaded = false;
 		try {
-			tasks = queue.leaseTasks(15, TimeUnit.SECONDS, 1, workerType, workflowId);
+			List<TaskHandle> handles = queue.leaseTasks(this.lease, TimeUnit.SECONDS, limit, workerType, workflowId);
+			if (handles == null) {
+				return tasks;
+			}
 
-			// do work!
-			if (!tasks.isEmpty()) {
-				TaskHandle first = tasks.get(0);
-				return Task.load(first.getJobID(), first.getId());
+			for (TaskHandle handle : handles) {
+				Task task = Task.load(handle.getJobID(), handle.getId());
+				if (task != null) {
+					tasks.add(task);
+					if (this.heartbeat != null) {
+						this.heartbeat.add(task);
+					}
+				}
 			}
+			loaded = true;
 		} catch (ConnectionException e) {
 			throw new IllegalStateException(e);
+		} finally {
+			// the leases of tasks that are not handed out have to expire
+			if (!loaded) {
+				for (Task task : tasks) {
+					this.releaseTask(task);
+				}
+			}
 		}
 		
-		return null;
+		return tasks;
 	}
 
 	/**
@@ -173,30 +512,50 @@ public class Service {
 	 * @return A task or null if no task available
 	 */
 	public Task getTask(String workerType) {
+		List<Task> tasks = getTasks(workerType, 1);
+		
+		if (!tasks.isEmpty()) {
+			return tasks.get(0);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get a batch of tasks from the task queue, using the priorities set with
+	 * setPriorities. All tasks in the batch belong to the same job.
+	 * 
+	 * @param workerType
+	 *            The type of worker
+	 * @param limit
+	 *            The maximum number of tasks to lease
+	 * @return A list of tasks, empty if no task is available
+	 */
+	public List<Task> getTasks(String workerType, int limit) {
 
 		WeightedRoundRobin rrs = getPriorities(workerType);
 		if (rrs == null) {
 			logger.finest("no scheduler for " + workerType);
-			return getTask(null, workerType);
+			return getTasks(null, workerType, limit);
 		}
 
 		String workflow = rrs.getNext();
 
 		if (workflow == null) {
-			return getTask(null, workerType);
+			return getTasks(null, workerType, limit);
 		}
 		
-		Task handle = getTask(UUID.fromString(workflow), workerType);
+		List<Task> tasks = getTasks(UUID.fromString(workflow), workerType, limit);
 
-		if (handle == null && workflow != null) {
+		if (tasks.isEmpty()) {
 
 			logger.finest("scheduler missed (no work for: " + workflow + ", "
 					+ workerType + "), taking random");
 			// don't go on fishing expedition, just grab work, if any
-			return getTask(null, workerType);
+			return getTasks(null, workerType, limit);
 		}
 
-		return handle;
+		return tasks;
 
 	}
 
@@ -207,8 +566,129 @@ public class Service {
 	 *            A handle for the task that needs to be removed.
 	 */
 	public void deleteTask(Task handle) {
+		this.releaseTask(handle);
 		this.queue.finishTask(handle);
 	}
+	
+	/**
+	 * Stop renewing the lease of a task. A released task that is not deleted
+	 * is leased again when its lease expires.
+	 */
+	public void releaseTask(Task task) {
+		if (this.heartbeat != null) {
+			this.heartbeat.remove(task);
+		}
+	}
+	
+	/**
+	 * Extend the lease of a task with a full lease time from now
+	 */
+	public void renewLease(Task task) {
+		try {
+			this.queue.renewLeases(Collections.singletonList(task), this.lease, TimeUnit.SECONDS);
+		} catch (ConnectionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Queue a failed task again after the given delay. The number of attempts
+	 * of the task should already be updated.
+	 */
+	public void retryTask(Task task, long delay, TimeUnit unit) {
+		this.releaseTask(task);
+		task.saveRetry();
+		
+		// the retry replaces the failed attempt, both use the same row in the
+		// queue
+		this.queue.retryTask(task, System.currentTimeMillis() + unit.toMillis(delay));
+		if (delay <= 0) {
+			this.signalWork(task.getWorker());
+		}
+	}
+	
+	/**
+	 * Move a task that failed too often from the queue to the dead letter 
+	 * table
+	 */
+	public void deadLetterTask(Task task, TaskResult result) {
+		this.releaseTask(task);
+		
+		String reason = String.valueOf(result.getResult());
+		if (result.getException() != null) {
+			reason += ": " + result.getException();
+		}
+		
+		try {
+			Statements.prepare(ConsistencyLevel.CL_QUORUM, "INSERT INTO dead_letter (worker_type, job_id, id, attempts, failed_at, result) VALUES (?, ?, ?, ?, ?, ?)")
+					.withStringValue(task.getWorker())
+					.withUUIDValue(task.getJobId())
+					.withUUIDValue(task.getId())
+					.withIntegerValue(task.getAttempts())
+					.withLongValue(System.currentTimeMillis())
+					.withStringValue(reason)
+					.execute();
+		} catch (ConnectionException e) {
+			// keep the task in the queue so it is not lost
+			throw new IllegalStateException(e);
+		}
+		
+		this.queue.finishTask(task);
+		Metrics.counter("queue.deadletter").inc();
+		Metrics.counter("queue.deadletter." + task.getWorker()).inc();
+	}
+
+	/**
+	 * Get the number of dead lettered tasks of a worker type, counted in the
+	 * dead_letter table. The queue.deadletter counters only count the tasks 
+	 * that were dead lettered on this node since it started.
+	 */
+	public long getDeadLetterDepth(String workerType) {
+		return countDeadLetters(Statements.prepare("SELECT COUNT(*) FROM dead_letter WHERE worker_type = ?")
+				.withStringValue(workerType));
+	}
+	
+	/**
+	 * Get the number of dead lettered tasks of a worker type and job
+	 */
+	public long getDeadLetterDepth(String workerType, UUID jobId) {
+		return countDeadLetters(Statements.prepare("SELECT COUNT(*) FROM dead_letter WHERE worker_type = ? AND job_id = ?")
+				.withStringValue(workerType)
+				.withUUIDValue(jobId));
+	}
+	
+	private static long countDeadLetters(PreparedCqlQuery<String, String> count) {
+		try {
+			for (Row<String, String> row : count.execute().getResult().getRows()) {
+				return row.getColumns().getLongValue("count", 0L);
+			}
+			return 0;
+		} catch (ConnectionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get the number of tasks in the queue of a worker type and job
+	 */
+	public QueueDepth getQueueDepth(String workerType, UUID jobId) {
+		try {
+			return this.queue.getDepth(workerType, jobId);
+		} catch (ConnectionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Get the number of tasks in the queues of a worker type over all jobs
+	 */
+	public QueueDepth getQueueDepth(String workerType) {
+		try {
+			return this.queue.getDepth(workerType);
+		} catch (ConnectionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 
 	/**
 	 * Mark the end of a job. Only one task can finish a job!
@@ -232,9 +712,7 @@ public class Service {
 	public void removeJobPriority(Job job, List<String> workers) {
 		try {
 			for(String worker : workers) {
-				cs().prepareQuery(Entities.CF_STANDARD1)
-						.withCql("DELETE FROM priorities WHERE job_id = ? AND worker_type = ?")
-						.asPreparedStatement()
+				Statements.prepare("DELETE FROM priorities WHERE job_id = ? AND worker_type = ?")
 						.withUUIDValue(job.getJobId())
 						.withStringValue(worker)
 						.execute();
@@ -256,9 +734,7 @@ public class Service {
 				UUID jobId = UUID.fromString(rrs.getName(i));
 				float weight = rrs.getWeight(i);
 				
-				cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql("UPDATE priorities SET weight = ? WHERE job_id = ? AND worker_type = ?")
-					.asPreparedStatement()
+				Statements.prepare("UPDATE priorities SET weight = ? WHERE job_id = ? AND worker_type = ?")
 					.withFloatValue(weight)
 					.withUUIDValue(jobId)
 					.withStringValue(workerType)
@@ -279,9 +755,7 @@ public class Service {
 		
 		// load the weight from cassandra
 		try {
-			OperationResult<CqlResult<String, String>> result = cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("SELECT * FROM priorities WHERE worker_type = ?")
-				.asPreparedStatement()
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT * FROM priorities WHERE worker_type = ?")
 				.withStringValue(workerType)
 				.execute();
 			
@@ -0,0 +1,73 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.query.CqlQuery;
+import com.netflix.astyanax.query.PreparedCqlQuery;
+
+/**
+ * Creates all CQL statements that are executed against cassandra. 
+ * 
+ * Statements are not cached: the thrift client prepares a statement on the 
+ * connection that executes it, every time it is executed, and a prepared 
+ * query collects the bind values of a single execution. A statement with 
+ * bind variables therefore costs a prepare and an execute round-trip, a
+ * statement without bind variables is executed as plain CQL in a single 
+ * round-trip.
+ * 
+ * Values belong in bind variables. The exceptions are LIMIT and USING TTL,
+ * which cassandra 1.2 cannot bind, and the number of statements in a batch.
+ * These are integers that are appended to the CQL text.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class Statements {
+	/**
+	 * Create a statement without bind variables
+	 */
+	public static CqlQuery<String, String> query(String cql) {
+		return Entities.cs().prepareQuery(Entities.CF_STANDARD1).withCql(cql);
+	}
+	
+	/**
+	 * Prepare a statement with the default consistency level
+	 */
+	public static PreparedCqlQuery<String, String> prepare(String cql) {
+		return prepare(null, cql);
+	}
+	
+	/**
+	 * Prepare a statement that is executed with the given consistency level.
+	 * The returned query is not shared between threads.
+	 * 
+	 * @param cl The consistency level or null for the default level
+	 */
+	public static PreparedCqlQuery<String, String> prepare(ConsistencyLevel cl, String cql) {
+		if (cl == null) {
+			return Entities.cs().prepareQuery(Entities.CF_STANDARD1)
+					.withCql(cql).asPreparedStatement();
+		}
+		return Entities.cs().prepareQuery(Entities.CF_STANDARD1)
+				.setConsistencyLevel(cl)
+				.withCql(cql).asPreparedStatement();
+	}
+}
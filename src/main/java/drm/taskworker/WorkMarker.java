@@ -0,0 +1,168 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Row;
+
+/**
+ * Passes work signals between nodes. A node that queues work for a worker 
+ * type sets the marker of that worker type in the work_marker table, at most
+ * once per interval; work queued within the interval is marked when the 
+ * interval ends. Each node reads all markers once per interval and 
+ * signals its local workers of the worker types of which the marker changed.
+ * This replaces the polling of the queue by every idle worker with one small
+ * read per node.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class WorkMarker implements Runnable {
+	private static Logger logger = Logger.getLogger(WorkMarker.class.getCanonicalName());
+	
+	private WorkSignal signal;
+	private long interval;
+	private ConcurrentMap<String, Long> marked = new ConcurrentHashMap<>();
+	private Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private Map<String, Long> seen = null;
+	private ScheduledExecutorService executor;
+	
+	/**
+	 * Create a marker that delivers the markers of other nodes to the given 
+	 * signal. The markers are read every interval milliseconds.
+	 */
+	public WorkMarker(WorkSignal signal, long interval) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("The marker interval should be positive");
+		}
+		
+		this.signal = signal;
+		this.interval = interval;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "work-marker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Mark that there is work for the given worker type. A mark within one 
+	 * interval after the previous mark of this node is written when the 
+	 * interval ends, the readers only notice one change per interval anyway.
+	 */
+	public void mark(String workerType) {
+		long now = System.currentTimeMillis();
+		Long last = this.marked.get(workerType);
+		if (last != null && now - last < this.interval) {
+			this.pending.add(workerType);
+			return;
+		}
+		
+		boolean won = (last == null) ? this.marked.putIfAbsent(workerType, now) == null 
+				: this.marked.replace(workerType, last, now);
+		if (!won) {
+			// another thread writes a mark now, this one is written later
+			this.pending.add(workerType);
+			return;
+		}
+		
+		this.write(workerType, now);
+	}
+	
+	/**
+	 * Write the marks that were made within the interval of a previous mark
+	 */
+	private void flush() {
+		for (String workerType : this.pending) {
+			if (this.pending.remove(workerType)) {
+				long now = System.currentTimeMillis();
+				this.marked.put(workerType, now);
+				this.write(workerType, now);
+			}
+		}
+	}
+	
+	private void write(String workerType, long now) {
+		try {
+			Statements.prepare("UPDATE work_marker SET marked_at = ? WHERE worker_type = ?")
+					.withLongValue(now)
+					.withStringValue(workerType)
+					.execute();
+		} catch (ConnectionException e) {
+			logger.log(Level.WARNING, "Unable to mark work for " + workerType, e);
+		}
+	}
+	
+	/**
+	 * Read the markers and signal the worker types of which the marker 
+	 * changed since the previous read
+	 */
+	@Override
+	public void run() {
+		this.flush();
+		
+		try {
+			Map<String, Long> markers = new HashMap<>();
+			for (Row<String, String> row : Statements.query("SELECT worker_type, marked_at FROM work_marker")
+					.execute().getResult().getRows()) {
+				ColumnList<String> c = row.getColumns();
+				markers.put(c.getStringValue("worker_type", null), c.getLongValue("marked_at", 0L));
+			}
+			
+			if (this.seen != null) {
+				for (Map.Entry<String, Long> marker : markers.entrySet()) {
+					if (!marker.getValue().equals(this.seen.get(marker.getKey()))) {
+						this.signal.signal(marker.getKey());
+					}
+				}
+			}
+			this.seen = markers;
+		} catch (Exception e) {
+			// an exception would cancel the next reads
+			logger.log(Level.WARNING, "Unable to read the work markers", e);
+		}
+	}
+	
+	/**
+	 * Stop reading markers and write the marks that are still pending
+	 */
+	public void stop() {
+		this.executor.shutdownNow();
+		this.flush();
+	}
+}
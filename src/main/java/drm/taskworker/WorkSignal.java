@@ -0,0 +1,101 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wakes up idle workers when work is queued for their worker type. Each 
+ * worker type has a version that is incremented by every signal. A worker 
+ * reads the version before it looks for work and only parks when the version
+ * did not change since, so a signal that arrives while it is looking for 
+ * work is never lost.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class WorkSignal {
+	private ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<>();
+	
+	/**
+	 * The signal of one worker type
+	 */
+	private static class Channel {
+		private long version = 0;
+	}
+	
+	private Channel getChannel(String workerType) {
+		Channel channel = this.channels.get(workerType);
+		if (channel == null) {
+			Channel newChannel = new Channel();
+			channel = this.channels.putIfAbsent(workerType, newChannel);
+			if (channel == null) {
+				channel = newChannel;
+			}
+		}
+		return channel;
+	}
+	
+	/**
+	 * The current version of the signal of a worker type
+	 */
+	public long getVersion(String workerType) {
+		Channel channel = this.getChannel(workerType);
+		synchronized (channel) {
+			return channel.version;
+		}
+	}
+	
+	/**
+	 * Signal that there is work for the given worker type
+	 */
+	public void signal(String workerType) {
+		Channel channel = this.getChannel(workerType);
+		synchronized (channel) {
+			channel.version++;
+			channel.notifyAll();
+		}
+	}
+	
+	/**
+	 * Wait until the version of a worker type differs from the given version
+	 * or until the timeout passed.
+	 * 
+	 * @return True when work was signalled
+	 */
+	public boolean await(String workerType, long version, long timeout, TimeUnit unit) 
+			throws InterruptedException {
+		Channel channel = this.getChannel(workerType);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		synchronized (channel) {
+			while (channel.version == version) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					return false;
+				}
+				channel.wait(remaining);
+			}
+			return true;
+		}
+	}
+}
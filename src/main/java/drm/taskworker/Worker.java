@@ -19,12 +19,20 @@
 
 package drm.taskworker;
 
+import static drm.taskworker.config.Config.cfg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import dnet.minimetrics.TimerContext;
+import drm.taskworker.config.BackoffIdleStrategy;
+import drm.taskworker.config.IdleStrategy;
+import drm.taskworker.config.RetryPolicy;
 import drm.taskworker.monitoring.Metrics;
 import drm.taskworker.tasks.Task;
 import drm.taskworker.tasks.TaskResult;
@@ -52,6 +60,9 @@ public abstract class Worker implements Runnable {
 
 	private boolean working = true;
 	private String nextWorker = "next";
+	private int leaseBatch = 1;
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private IdleStrategy idleStrategy = null;
 
 	/**
 	 * Create a new work with a name
@@ -83,6 +94,70 @@ public abstract class Worker implements Runnable {
 	 */
 	public abstract TaskResult work(Task task);
 
+	/**
+	 * Extend the lease of a task this worker is working on. Leases are 
+	 * renewed automatically when the lease heartbeat is enabled, so this is
+	 * only needed for long running work when it is disabled.
+	 */
+	protected void renewLease(Task task) {
+		Service.get().renewLease(task);
+	}
+
+	/**
+	 * Set the number of tasks that are leased at once. The tasks in a batch
+	 * are processed one by one before a new batch is leased, so the batch
+	 * should be small enough to finish within the lease time. With a 
+	 * dispatcher the batch only sets the size of the batches of a batch 
+	 * worker.
+	 */
+	public void setLeaseBatch(int leaseBatch) {
+		if (leaseBatch < 1) {
+			throw new IllegalArgumentException("The lease batch should be at least one task");
+		}
+		this.leaseBatch = leaseBatch;
+	}
+	
+	/**
+	 * Get the number of tasks that are leased at once
+	 */
+	public int getLeaseBatch() {
+		return this.leaseBatch;
+	}
+
+	/**
+	 * Set how failed tasks are retried
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy == null) {
+			throw new IllegalArgumentException("A worker requires a retry policy");
+		}
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * Get how failed tasks are retried
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	/**
+	 * Set how long this worker waits when there is no work
+	 */
+	public void setIdleStrategy(IdleStrategy idleStrategy) {
+		this.idleStrategy = idleStrategy;
+	}
+	
+	/**
+	 * Get how long this worker waits when there is no work
+	 */
+	public IdleStrategy getIdleStrategy() {
+		if (this.idleStrategy == null) {
+			this.idleStrategy = new BackoffIdleStrategy();
+		}
+		return this.idleStrategy;
+	}
+
 	/**
 	 * Stop working so the thread ends clean
 	 */
@@ -98,102 +173,291 @@ public abstract class Worker implements Runnable {
 		logger.info("Started worker " + this.toString());
 
 		Service svc = Service.get();
-		int sleepTime = 200;
+		WorkSignal signal = svc.getWorkSignal();
+		long idleTime = cfg().getProperty("taskworker.worker.idle", 1000);
+		IdleStrategy idle = this.getIdleStrategy();
+		int emptyLeases = 0;
+		
+		// without a dispatcher each thread leases its own tasks
+		Dispatcher dispatcher = svc.getDispatcher(this.name);
+		if (dispatcher != null) {
+			dispatcher.register();
+		}
 
 		while (this.working) {
 			try {
+				// read the signal before looking for work, so work that is 
+				// queued while looking is not missed
+				long version = signal.getVersion(this.name);
+				
 				TimerContext tcLease = Metrics.timer("worker.lease").time();
 				TimerContext tcNoLease = Metrics.timer("worker.nolease").time();
-				Task task = svc.getTask(this.name);
+				List<Task> tasks;
+				if (dispatcher != null) {
+					tasks = this.take(dispatcher, idleTime, TimeUnit.MILLISECONDS);
+				} else {
+					tasks = svc.getTasks(this.name, this.leaseBatch);
+				}
 				
-				if (task != null) {
+				if (!tasks.isEmpty()) {
 					tcLease.stop();
-					TimerContext tc = Metrics.timer("worker.work." + this.name).time();
-
-					trace("FETCHED",task);
-
-					// execute the task
-					TaskResult result = null;
-					task.setStartedAt();
-					try {
-						result = this.work((Task) task);
-					} catch (Exception e) {
-						result = new TaskResult();
-						
-						result.setException(e);
-						result.setResult(Result.EXCEPTION);
-						result.fail();
-					}
-					task.setFinishedAt();
-					task.saveTiming();
-
-					if (result == null) {
-						result = new TaskResult();
-						result.setResult(Result.ERROR);
-						result.fail();
-						logger.warning("Worker returns null. Ouch ...");
-					}
-
-					// process the result
-					if (result.getResult() == TaskResult.Result.FINISHED) {
-						svc.jobFinished(task.getJob());
-						
-					} else if (result.getResult() == TaskResult.Result.SUCCESS) {
-						trace("DONE", task);
-						List<Task> tasks = result.getNextTasks();
-						// is this is a split, do the split
-						if (tasks.size() > 1) {
-							// allocate a new uuid that will become the 
-							// taskid of the joined task
-							UUID joinId = UUID.randomUUID();
-							Job.storeJoin(task.getJobId(), joinId, tasks.size());								
-							for (Task newTask : tasks) {
-								newTask.markSplit(joinId);
-								svc.queueTask(newTask);
-								trace("NEW", newTask);
-							}
-						} else if (tasks.size() == 1) {
-							svc.queueTask(tasks.get(0));
-						} else {
-							// do nothing
-						}
-						svc.deleteTask(task);
-						
-					} else {
-						trace("FAILED", task);
-						logger.warning(String.format("[%s] failed %s: %s", this.name, task.toString(), result.getResult().toString())); 
-						if (result.getResult() == TaskResult.Result.EXCEPTION) {
-							result.getException().printStackTrace();
-						}
-						
-						if (result.isFatal()) {
-							// if this task is fatal, kill the current workflow
-							svc.killJob(task.getJobId());
-						}
-					}
+					emptyLeases = 0;
 					
-					sleepTime = sleepTime - 10;
-					if (sleepTime < 0) {
-						sleepTime = 0;
-					}
-					
-					tc.stop();
+					this.process(tasks, dispatcher);
 				} else {
 					tcNoLease.stop();
-					sleepTime += 10;
-					if (sleepTime > 200) {
-						sleepTime = 200;
+					
+					// park until work is queued, but look again after the 
+					// idle time for delayed tasks and expired leases. The 
+					// dispatcher already waited in take.
+					if (dispatcher == null) {
+						emptyLeases++;
+						long waitStart = System.currentTimeMillis();
+						signal.await(this.name, version, idle.getIdleTime(emptyLeases), TimeUnit.MILLISECONDS);
+						Metrics.counter("worker.idle." + this.name).inc(System.currentTimeMillis() - waitStart);
 					}
 				}
-
-				Thread.sleep(sleepTime);
 			} catch (Exception e) {
 				logger.log(Level.SEVERE, getName() + " failed", e);
 			}
 		}
+		
+		if (dispatcher != null) {
+			dispatcher.unregister();
+		}
+	}
+
+	/**
+	 * Execute a leased task and process its result
+	 */
+	void process(Task task) {
+		TimerContext tc = Metrics.timer("worker.work." + this.name).time();
+		long started = System.currentTimeMillis();
+
+		trace("FETCHED",task);
+
+		// execute the task
+		TaskResult result = null;
+		task.setStartedAt();
+		try {
+			result = this.work((Task) task);
+		} catch (Exception e) {
+			result = failed(e);
+		}
+		task.setFinishedAt();
+		this.commit(task, result);
+		
+		tc.stop();
+		Metrics.counter("worker.busy." + this.name).inc(System.currentTimeMillis() - started);
+	}
+	
+	/**
+	 * Process the tasks this worker took together and report their duration
+	 * to the dispatcher, if any. A worker processes them one by one.
+	 */
+	void process(List<Task> tasks, Dispatcher dispatcher) {
+		for (Task task : tasks) {
+			long started = System.nanoTime();
+			this.process(task);
+			if (dispatcher != null) {
+				dispatcher.taskDone(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Take the next tasks this worker processes together from the 
+	 * dispatcher. A worker takes one task.
+	 * 
+	 * @return The tasks, empty when no task was available within the timeout
+	 */
+	List<Task> take(Dispatcher dispatcher, long timeout, TimeUnit unit) throws InterruptedException {
+		Task task = dispatcher.take(timeout, unit);
+		if (task == null) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(task);
+	}
+	
+	/**
+	 * The result of a task of which the execution threw an exception
+	 */
+	static TaskResult failed(Exception e) {
+		TaskResult result = new TaskResult();
+		
+		result.setException(e);
+		result.setResult(Result.EXCEPTION);
+		result.fail();
+		return result;
+	}
+	
+	/**
+	 * Commit the result of an executed task, in the commit pipeline when 
+	 * there is one so this thread can start its next task
+	 */
+	void commit(Task task, TaskResult result) {
+		CommitPipeline commits = Service.get().getCommitPipeline();
+		if (commits != null) {
+			commits.submit(this, task, result);
+		} else {
+			this.complete(task, result);
+		}
+	}
+	
+	/**
+	 * Save the timing of an executed task and process its result: queue the 
+	 * next tasks, retry or dead letter a failed task and remove the task from
+	 * the queue.
+	 */
+	void complete(Task task, TaskResult result) {
+		Service svc = Service.get();
+		Fusion fusion = svc.getFusion();
+
+		if (result == null) {
+			result = new TaskResult();
+			result.setResult(Result.ERROR);
+			result.fail();
+			logger.warning("Worker returns null. Ouch ...");
+		}
+		
+		// the leased task to remove, the head of the chain of a fused task
+		boolean fused = (fusion != null && fusion.isFused(task));
+		Task leased = task;
+		try {
+			// run a single next task in process when its worker has room. The 
+			// timing of the leased task at the head of the chain tells the reaper
+			// that it finished, so it is only written at the checkpoint.
+			if (fusion != null && result.getResult() == TaskResult.Result.SUCCESS 
+					&& result.getNextTasks().size() == 1 && fusion.fuse(task, result.getNextTasks().get(0))) {
+				if (fused) {
+					this.saveTiming(task, true);
+				}
+				trace("FUSED", task);
+				return;
+			}
+		
+			// a fused task is stored as a checkpoint
+			if (fused) {
+				leased = fusion.release(task);
+				task.save();
+			}
+		
+			// process the result. The timing of a task tells the reaper that it
+			// finished, so a task that is retried has no timing.
+			if (result.getResult() == TaskResult.Result.FINISHED) {
+				this.saveTiming(task, false);
+				svc.jobFinished(task.getJob());
+				if (leased != task) {
+					this.saveTiming(leased, false);
+				}
+				svc.releaseTask(leased);
+			
+			} else if (result.getResult() == TaskResult.Result.SUCCESS) {
+				trace("DONE", task);
+				List<Task> tasks = result.getNextTasks();
+				// is this is a split, do the split
+				if (tasks.size() > 1) {
+					// the join and the new tasks get ids derived from this 
+					// task. When only part of the split was queued, the task is
+					// released and executed again, and the split queues the 
+					// tasks that are missing instead of a second split.
+					for (int i = 0; i < tasks.size(); i++) {
+						tasks.get(i).setId(splitId(task, String.valueOf(i)));
+					}
+					this.queueSplit(task.getJobId(), splitId(task, "join"), tasks);
+				} else if (tasks.size() == 1) {
+					svc.queueTask(tasks.get(0));
+				} else {
+					// do nothing
+				}
+				
+				// the next tasks are queued, so the reaper may now see that 
+				// this task finished
+				this.saveTiming(task, fused);
+				if (leased != task) {
+					this.saveTiming(leased, false);
+				}
+				svc.deleteTask(leased);
+			
+			} else {
+				trace("FAILED", task);
+				logger.warning(String.format("[%s] failed %s: %s", this.name, task.toString(), result.getResult().toString())); 
+				if (result.getResult() == TaskResult.Result.EXCEPTION) {
+					result.getException().printStackTrace();
+				}
+				Metrics.counter("worker.failed." + this.name).inc();
+			
+				int attempts = task.getAttempts() + 1;
+				task.setAttempts(attempts);
+				if (this.retryPolicy.shouldRetry(attempts)) {
+					svc.retryTask(task, this.retryPolicy.getDelay(attempts), TimeUnit.MILLISECONDS);
+					Metrics.counter("worker.retried." + this.name).inc();
+				} else {
+					trace("DEAD", task);
+					this.saveTiming(task, false);
+					svc.deadLetterTask(task, result);
+				
+					if (result.isFatal()) {
+						// if this task is fatal, kill the current workflow
+						svc.killJob(task.getJobId());
+					}
+				}
+			
+				// the failed task is stored now, the chain it ran in is done
+				if (leased != task) {
+					this.saveTiming(leased, false);
+					svc.deleteTask(leased);
+				}
+			}
+		} catch (RuntimeException e) {
+			// stop renewing the lease so it expires and the task, or the chain
+			// it ran in, is executed again
+			if (fused && leased == task) {
+				Task head = fusion.release(task);
+				if (head != null) {
+					leased = head;
+				}
+			}
+			svc.releaseTask(leased);
+			throw e;
+		}
+	}
+
+	/**
+	 * Store the join of a split and queue its tasks. All tasks are in the 
+	 * queue when this method returns.
+	 */
+	void queueSplit(UUID jobId, UUID joinId, List<Task> tasks) {
+		Job.storeJoin(jobId, joinId, tasks.size());
+		for (Task newTask : tasks) {
+			newTask.markSplit(joinId);
+			trace("NEW", newTask);
+		}
+		Service.get().queueTasks(tasks);
+	}
+	
+	/**
+	 * Save the timing of a task, which tells the reaper that the task 
+	 * finished
+	 * 
+	 * @param async Do not wait for the write
+	 */
+	void saveTiming(Task task, boolean async) {
+		if (async) {
+			Service.get().saveTimingAsync(task);
+		} else {
+			task.saveTiming();
+		}
+	}
+
+	/**
+	 * An id that is derived from the id of the task that splits
+	 */
+	private static UUID splitId(Task task, String part) {
+		return UUID.nameUUIDFromBytes((task.getId() + "/" + part).getBytes(StandardCharsets.UTF_8));
 	}
 
-	private void trace(String cmd, Task task) {
+	void trace(String cmd, Task task) {
 		logger.info(String.format("[%s] %s %s", this.name, cmd, task.toString()));
 	}
 
@@ -26,12 +26,15 @@ import java.util.logging.Logger;
 import drm.taskworker.config.Config;
 
 /**
- * This class starts pull workers for processing tasks from pull queues
+ * This class starts pull workers for processing tasks from pull queues. With
+ * the executor runtime all workers share one executor, otherwise every 
+ * worker instance gets its own thread.
  * 
  * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
  */
 public class WorkerRegistration {
 	private List<Worker> background_threads = null;
+	private WorkerRuntime runtime = null;
 	private Config config = null;
 	protected static final Logger logger = Logger.getLogger(WorkerRegistration.class.getCanonicalName());
 
@@ -50,14 +53,49 @@ public class WorkerRegistration {
 	public void start() {
 		if (config.getWorkers() != null) {		
 			for (drm.taskworker.config.WorkerConfig worker : config.getWorkers().values()) {
-				logger.info("Starting " + worker.getWorkerName() + " thread");
-				for (int i = 0; i < worker.getThreads(); i++) {
-					Worker w = worker.getWorkerInstance();
-					this.addWorker(w);
+				Dispatcher dispatcher = this.useRuntime() ? Service.get().getDispatcher(worker.getWorkerName()) : null;
+				
+				if (dispatcher != null) {
+					logger.info("Starting " + worker.getWorkerName() + " with " + worker.getThreads() + " permits");
+					List<Worker> instances = new ArrayList<>();
+					for (int i = 0; i < worker.getThreads(); i++) {
+						instances.add(worker.getWorkerInstance());
+					}
+					
+					if (this.runtime == null) {
+						this.runtime = new WorkerRuntime();
+						Service.get().setWorkerRuntime(this.runtime);
+					}
+					this.runtime.add(worker.getWorkerName(), dispatcher, instances);
+				} else {
+					logger.info("Starting " + worker.getWorkerName() + " thread");
+					for (int i = 0; i < worker.getThreads(); i++) {
+						Worker w = worker.getWorkerInstance();
+						this.addWorker(w);
+					}
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Should the workers run on the shared executor? The runtime takes its 
+	 * tasks from the dispatchers, so it also requires taskworker.dispatcher.
+	 */
+	private boolean useRuntime() {
+		String runtime = config.getProperty("taskworker.workers.runtime", "threads");
+		if (runtime.equals("threads")) {
+			return false;
+		} else if (!runtime.equals("executor")) {
+			throw new IllegalArgumentException("Unknown worker runtime " + runtime);
+		}
+		
+		if (!config.getProperty("taskworker.dispatcher", false)) {
+			logger.warning("The executor runtime requires taskworker.dispatcher, starting a thread per worker");
+			return false;
+		}
+		return true;
+	}
 
 	/**
 	 * Stop all worker threads when the servlet is destroyed.
@@ -66,5 +104,15 @@ public class WorkerRegistration {
 		for (Worker thread : this.background_threads) {
 			thread.stopWorking();
 		}
+		if (this.runtime != null) {
+			this.runtime.stop();
+		}
+		
+		CommitPipeline commits = Service.get().getCommitPipeline();
+		if (commits != null) {
+			commits.stop();
+		}
+		
+		Service.get().stop();
 	}
 }
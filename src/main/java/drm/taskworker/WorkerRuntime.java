@@ -0,0 +1,213 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static drm.taskworker.config.Config.cfg;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Runs the workers of all worker types on one shared executor instead of a 
+ * thread per worker instance. Each worker type has a pump that takes tasks 
+ * from the dispatcher of the type and runs each task on the executor. The
+ * number of tasks of a type that run at the same time is limited by permits,
+ * one for each configured thread of the type. A permit is given back when the
+ * process of the worker returns, which for an AsyncWorker is as soon as its
+ * tasks are started; its in flight limit bounds the running tasks instead.
+ * 
+ * The executor uses virtual threads when the JVM supports them (java 21 and
+ * later) and a cached pool of daemon threads otherwise. A worker that waits 
+ * for cassandra then does not keep an OS thread blocked.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class WorkerRuntime {
+	private static Logger logger = Logger.getLogger(WorkerRuntime.class.getCanonicalName());
+	
+	private ExecutorService executor;
+	private ConcurrentMap<String, Pump> pumps = new ConcurrentHashMap<>();
+	private volatile boolean running = true;
+	
+	public WorkerRuntime() {
+		this.executor = createExecutor();
+	}
+	
+	/**
+	 * Create an executor with virtual threads when the JVM supports them
+	 */
+	private static ExecutorService createExecutor() {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			logger.info("Running workers on virtual threads");
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			logger.info("Running workers on a thread pool");
+		}
+		
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Start running the tasks of a worker type. Every instance is one permit,
+	 * an instance only executes one task at a time.
+	 */
+	public void add(String workerType, Dispatcher dispatcher, List<Worker> instances) {
+		if (instances.isEmpty()) {
+			throw new IllegalArgumentException("Worker type " + workerType + " requires at least one instance");
+		}
+		Pump pump = new Pump(workerType, dispatcher, instances);
+		this.pumps.put(workerType, pump);
+		this.executor.execute(pump);
+	}
+	
+	/**
+	 * Run a task right away when its worker type runs here and has a free 
+	 * permit
+	 * 
+	 * @return False when the task was not started
+	 */
+	public boolean tryExecute(Task task) {
+		Pump pump = this.pumps.get(task.getWorker());
+		if (pump == null || !this.running) {
+			return false;
+		}
+		return pump.tryExecute(task);
+	}
+	
+	/**
+	 * Stop taking new tasks and interrupt the running tasks
+	 */
+	public void stop() {
+		this.running = false;
+		this.executor.shutdownNow();
+	}
+	
+	/**
+	 * Takes the tasks of one worker type and runs them on the executor
+	 */
+	private class Pump implements Runnable {
+		private String workerType;
+		private Dispatcher dispatcher;
+		private Semaphore permits;
+		private ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+		private long idleTime = cfg().getProperty("taskworker.worker.idle", 1000);
+		
+		public Pump(String workerType, Dispatcher dispatcher, List<Worker> instances) {
+			this.workerType = workerType;
+			this.dispatcher = dispatcher;
+			this.permits = new Semaphore(instances.size());
+			this.idle.addAll(instances);
+			
+			for (int i = 0; i < instances.size(); i++) {
+				dispatcher.register();
+			}
+		}
+		
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					this.permits.acquire();
+					
+					Worker worker = this.idle.poll();
+					List<Task> tasks = Collections.emptyList();
+					try {
+						tasks = worker.take(this.dispatcher, this.idleTime, TimeUnit.MILLISECONDS);
+					} finally {
+						if (tasks.isEmpty()) {
+							this.idle.offer(worker);
+							this.permits.release();
+						}
+					}
+					
+					if (!tasks.isEmpty()) {
+						this.execute(worker, tasks);
+					}
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Worker runtime of " + this.workerType + " failed", e);
+				}
+			}
+		}
+		
+		/**
+		 * Run a task when a permit and a worker instance are free
+		 */
+		public boolean tryExecute(Task task) {
+			if (!this.permits.tryAcquire()) {
+				return false;
+			}
+			
+			Worker worker = this.idle.poll();
+			if (worker == null) {
+				this.permits.release();
+				return false;
+			}
+			
+			this.execute(worker, Collections.singletonList(task));
+			return true;
+		}
+		
+		/**
+		 * Run the tasks on an idle worker instance and give back the instance 
+		 * and its permit when the tasks are done
+		 */
+		private void execute(final Worker worker, final List<Task> tasks) {
+			Metrics.counter("runtime.running." + this.workerType).inc();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						worker.process(tasks, dispatcher);
+					} catch (Exception e) {
+						logger.log(Level.SEVERE, worker.getName() + " failed", e);
+					} finally {
+						Metrics.counter("runtime.running." + workerType).dec();
+						idle.offer(worker);
+						permits.release();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.netflix.astyanax.Execution;
+
+/**
+ * Sends independent writes without waiting for each of them. At most 
+ * maxInFlight writes are sent and not answered yet; submitting a write 
+ * blocks until a slot is free, so a large fan-out cannot overrun the 
+ * connection pool.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class WritePipeline {
+	private static Logger logger = Logger.getLogger(WritePipeline.class.getCanonicalName());
+	
+	/**
+	 * Runs the completion of a write on the thread that completes it
+	 */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	private Semaphore inFlight;
+	
+	public WritePipeline(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("A write pipeline requires at least one write in flight");
+		}
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+	
+	/**
+	 * Send a write
+	 * 
+	 * @return A future that completes when the write is acknowledged
+	 */
+	public ListenableFuture<?> submit(Execution<?> write) {
+		this.inFlight.acquireUninterruptibly();
+		
+		ListenableFuture<?> result;
+		try {
+			result = write.executeAsync();
+		} catch (Exception e) {
+			this.inFlight.release();
+			
+			SettableFuture<Object> failed = SettableFuture.create();
+			failed.setException(e);
+			return failed;
+		}
+		
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				inFlight.release();
+			}
+		}, DIRECT);
+		return result;
+	}
+	
+	/**
+	 * Send a write that nothing waits for. A failed write is logged.
+	 * 
+	 * @param description What the write does, used in the log message
+	 */
+	public void send(Execution<?> write, final String description) {
+		final ListenableFuture<?> result = this.submit(write);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					logger.log(Level.WARNING, "Unable to " + description, e.getCause());
+				}
+			}
+		}, DIRECT);
+	}
+	
+	/**
+	 * Send all writes
+	 * 
+	 * @return A future that completes when all writes are acknowledged or 
+	 * 			one of them failed
+	 */
+	public ListenableFuture<?> submitAll(List<? extends Execution<?>> writes) {
+		List<ListenableFuture<?>> results = new ArrayList<>();
+		for (Execution<?> write : writes) {
+			results.add(this.submit(write));
+		}
+		return Futures.allAsList(results);
+	}
+	
+	/**
+	 * The number of writes that can be sent before submit blocks
+	 */
+	public int available() {
+		return this.inFlight.availablePermits();
+	}
+}
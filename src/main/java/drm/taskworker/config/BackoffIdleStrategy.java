@@ -0,0 +1,127 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.config;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Waits exponentially longer after each lease that found no work, from min
+ * up to max milliseconds. Each wait is randomly shortened by at most the 
+ * jitter fraction, so idle workers on different nodes do not look for work 
+ * at the same moment.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class BackoffIdleStrategy implements IdleStrategy {
+	private static final long serialVersionUID = -2622585530296389349L;
+	
+	private long min = 10;
+	private long max;
+	private double jitter = 0.5;
+	
+	/**
+	 * Back off up to taskworker.worker.idle milliseconds
+	 */
+	public BackoffIdleStrategy() {
+		this.max = Math.max(this.min, Config.getConfig().getProperty("taskworker.worker.idle", 1000));
+	}
+	
+	/**
+	 * @param min The wait in milliseconds after the first empty lease
+	 * @param max The maximum wait in milliseconds
+	 * @param jitter The fraction of the wait that is random
+	 */
+	public BackoffIdleStrategy(long min, long max, double jitter) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("The minimum wait should be positive and at most the maximum wait");
+		}
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("The jitter should be a fraction between 0 and 1");
+		}
+		
+		this.min = min;
+		this.max = max;
+		this.jitter = jitter;
+	}
+	
+	/**
+	 * Parse a backoff from the idle attributes of a worker. Missing 
+	 * attributes keep their default value.
+	 */
+	public static BackoffIdleStrategy parse(Map<String, Object> map) {
+		BackoffIdleStrategy defaults = new BackoffIdleStrategy();
+		if (map == null) {
+			return defaults;
+		}
+		
+		long min = defaults.min;
+		long max = defaults.max;
+		double jitter = defaults.jitter;
+		
+		if (map.containsKey("min")) {
+			min = ((Number)map.get("min")).longValue();
+		}
+		if (map.containsKey("max")) {
+			max = ((Number)map.get("max")).longValue();
+		}
+		if (map.containsKey("jitter")) {
+			jitter = ((Number)map.get("jitter")).doubleValue();
+		}
+		
+		return new BackoffIdleStrategy(min, Math.max(min, max), jitter);
+	}
+
+	@Override
+	public long getIdleTime(int emptyLeases) {
+		if (emptyLeases < 1) {
+			return 0;
+		}
+		
+		long wait = this.min;
+		for (int i = 1; i < emptyLeases && wait < this.max; i++) {
+			wait *= 2;
+		}
+		wait = Math.min(wait, this.max);
+		
+		return wait - (long)(wait * this.jitter * ThreadLocalRandom.current().nextDouble());
+	}
+	
+	/**
+	 * @return the wait after the first empty lease
+	 */
+	public long getMin() {
+		return this.min;
+	}
+	
+	/**
+	 * @return the maximum wait
+	 */
+	public long getMax() {
+		return this.max;
+	}
+	
+	/**
+	 * @return the jitter fraction
+	 */
+	public double getJitter() {
+		return this.jitter;
+	}
+}
@@ -0,0 +1,39 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.config;
+
+import java.io.Serializable;
+
+/**
+ * How long a worker type waits before it looks for work again when the last
+ * lease found none. A signal that work was queued on this node always ends
+ * the wait immediately, so the idle time only bounds how late delayed tasks,
+ * expired leases and work queued on other nodes are picked up.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public interface IdleStrategy extends Serializable {
+	/**
+	 * The time in milliseconds to wait after the given number of leases in a
+	 * row that found no work. The count starts at one and is reset by every
+	 * lease that finds work, which is leased again without waiting.
+	 */
+	long getIdleTime(int emptyLeases);
+}
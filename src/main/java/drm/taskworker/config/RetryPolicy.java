@@ -0,0 +1,151 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.config;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a worker retries failed tasks. A failed task is queued again with an
+ * exponential backoff until it failed maxAttempts times, after which it is
+ * moved to the dead letter table. The backoff of each retry is randomly 
+ * shortened by at most the jitter fraction, so tasks that failed together do
+ * not retry together.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class RetryPolicy implements Serializable {
+	private static final long serialVersionUID = 4370316357823962731L;
+	
+	private int maxAttempts = 3;
+	private long backoff = 1000;
+	private long maxBackoff = 60000;
+	private double jitter = 0.2;
+	
+	public RetryPolicy() {
+	}
+	
+	/**
+	 * @param maxAttempts The number of times a task is executed before it is
+	 *                    dead lettered
+	 * @param backoff The delay in milliseconds before the first retry, this
+	 *                delay doubles with each retry
+	 * @param maxBackoff The maximum delay in milliseconds before a retry
+	 * @param jitter The fraction of the delay that is random
+	 */
+	public RetryPolicy(int maxAttempts, long backoff, long maxBackoff, double jitter) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("A task should be attempted at least once");
+		}
+		if (backoff < 0 || maxBackoff < backoff) {
+			throw new IllegalArgumentException("The backoff should be positive and at most the maximum backoff");
+		}
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("The jitter should be a fraction between 0 and 1");
+		}
+		
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+		this.maxBackoff = maxBackoff;
+		this.jitter = jitter;
+	}
+	
+	/**
+	 * Parse a retry policy from the retry attributes of a worker. Missing 
+	 * attributes keep their default value.
+	 */
+	public static RetryPolicy parse(Map<String, Object> map) {
+		RetryPolicy defaults = new RetryPolicy();
+		if (map == null) {
+			return defaults;
+		}
+		
+		int maxAttempts = defaults.maxAttempts;
+		long backoff = defaults.backoff;
+		long maxBackoff = defaults.maxBackoff;
+		double jitter = defaults.jitter;
+		
+		if (map.containsKey("attempts")) {
+			maxAttempts = ((Number)map.get("attempts")).intValue();
+		}
+		if (map.containsKey("backoff")) {
+			backoff = ((Number)map.get("backoff")).longValue();
+		}
+		if (map.containsKey("max_backoff")) {
+			maxBackoff = ((Number)map.get("max_backoff")).longValue();
+		}
+		if (map.containsKey("jitter")) {
+			jitter = ((Number)map.get("jitter")).doubleValue();
+		}
+		
+		return new RetryPolicy(maxAttempts, backoff, Math.max(backoff, maxBackoff), jitter);
+	}
+	
+	/**
+	 * Should a task that failed the given number of times be retried?
+	 */
+	public boolean shouldRetry(int failures) {
+		return failures < this.maxAttempts;
+	}
+	
+	/**
+	 * The delay in milliseconds before the retry after the given number of
+	 * failures
+	 */
+	public long getDelay(int failures) {
+		long delay = this.backoff;
+		for (int i = 1; i < failures && delay < this.maxBackoff; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, this.maxBackoff);
+		
+		return delay - (long)(delay * this.jitter * ThreadLocalRandom.current().nextDouble());
+	}
+	
+	/**
+	 * @return the maximum number of attempts
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+	
+	/**
+	 * @return the backoff before the first retry
+	 */
+	public long getBackoff() {
+		return this.backoff;
+	}
+	
+	/**
+	 * @return the maximum backoff
+	 */
+	public long getMaxBackoff() {
+		return this.maxBackoff;
+	}
+	
+	/**
+	 * @return the jitter fraction
+	 */
+	public double getJitter() {
+		return this.jitter;
+	}
+}
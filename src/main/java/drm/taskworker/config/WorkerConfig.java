@@ -42,6 +42,11 @@ public class WorkerConfig implements Serializable {
 	private String workerName = null;
 	private String workerClass = null;
 	private int threads = 1;
+	private int leaseBatch = 1;
+	private long batchWait = 100;
+	private int inFlight = 100;
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private IdleStrategy idleStrategy = null;
 	private static Logger logger = Logger.getLogger(Config.class.getCanonicalName());
 	
 	private URLClassLoader urlLoader = null;
@@ -111,7 +116,17 @@ public class WorkerConfig implements Serializable {
 			Class<drm.taskworker.Worker> workerCls = (Class<drm.taskworker.Worker>)getLoader().loadClass(this.getWorkerClass());
 			//Class<drm.taskworker.Worker> workerCls = (Class<drm.taskworker.Worker>)Class.forName(this.getWorkerClass());
 			Constructor<drm.taskworker.Worker> workerCtor = workerCls.getConstructor(String.class);
-			return workerCtor.newInstance(this.getWorkerName());
+			drm.taskworker.Worker worker = workerCtor.newInstance(this.getWorkerName());
+			worker.setLeaseBatch(this.getLeaseBatch());
+			worker.setRetryPolicy(this.getRetryPolicy());
+			worker.setIdleStrategy(this.getIdleStrategy());
+			if (worker instanceof drm.taskworker.BatchWorker) {
+				((drm.taskworker.BatchWorker)worker).setBatchWait(this.getBatchWait());
+			}
+			if (worker instanceof drm.taskworker.AsyncWorker) {
+				((drm.taskworker.AsyncWorker)worker).setInFlight(this.getInFlight());
+			}
+			return worker;
 		} catch (ClassNotFoundException e) {
 			logger.severe("Unable to load class " + this.getWorkerClass() + " for worker " + this.getWorkerName());
 		} catch (NoSuchMethodException e) {
@@ -144,6 +159,21 @@ public class WorkerConfig implements Serializable {
 				
 				WorkerConfig obj = new WorkerConfig((String)map.get("name"), (String)map.get("class"), (String)map.get("code"));
 				obj.setThreads(Integer.valueOf((Integer)map.get("threads")));
+				if (map.containsKey("batch")) {
+					obj.setLeaseBatch((Integer)map.get("batch"));
+				}
+				if (map.containsKey("batch_wait")) {
+					obj.setBatchWait(((Number)map.get("batch_wait")).longValue());
+				}
+				if (map.containsKey("inflight")) {
+					obj.setInFlight((Integer)map.get("inflight"));
+				}
+				if (map.containsKey("retry")) {
+					obj.setRetryPolicy(RetryPolicy.parse((Map<String, Object>)map.get("retry")));
+				}
+				if (map.containsKey("idle")) {
+					obj.setIdleStrategy(obj.parseIdleStrategy((Map<String, Object>)map.get("idle")));
+				}
 				
 				results.put((String)map.get("name"), obj);
 			}
@@ -165,4 +195,95 @@ public class WorkerConfig implements Serializable {
 	public int getThreads() {
 		return this.threads;
 	}
+	
+	/**
+	 * Set the number of tasks a worker leases at once
+	 */
+	public void setLeaseBatch(int leaseBatch) {
+		this.leaseBatch = leaseBatch;
+	}
+	
+	/**
+	 * Get the number of tasks a worker leases at once
+	 */
+	public int getLeaseBatch() {
+		return this.leaseBatch;
+	}
+	
+	/**
+	 * Set how long in milliseconds a batch worker waits for its batch to fill
+	 */
+	public void setBatchWait(long batchWait) {
+		this.batchWait = batchWait;
+	}
+	
+	/**
+	 * Get how long in milliseconds a batch worker waits for its batch to fill
+	 */
+	public long getBatchWait() {
+		return this.batchWait;
+	}
+	
+	/**
+	 * Set the number of tasks an async worker instance keeps in flight
+	 */
+	public void setInFlight(int inFlight) {
+		this.inFlight = inFlight;
+	}
+	
+	/**
+	 * Get the number of tasks an async worker instance keeps in flight
+	 */
+	public int getInFlight() {
+		return this.inFlight;
+	}
+	
+	/**
+	 * Set how failed tasks of this worker are retried
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * Get how failed tasks of this worker are retried
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+	
+	/**
+	 * Parse the idle attributes of a worker. With a class attribute the 
+	 * strategy is loaded from the code of the worker, otherwise the 
+	 * attributes configure a backoff.
+	 */
+	private IdleStrategy parseIdleStrategy(Map<String, Object> map) {
+		if (map == null || !map.containsKey("class")) {
+			return BackoffIdleStrategy.parse(map);
+		}
+		
+		String cls = (String)map.get("class");
+		try {
+			return (IdleStrategy)getLoader().loadClass(cls).newInstance();
+		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
+			throw new IllegalArgumentException("Unable to create idle strategy " + cls + " for worker " + this.workerName, e);
+		}
+	}
+	
+	/**
+	 * Set how long the workers of this type wait when there is no work
+	 */
+	public void setIdleStrategy(IdleStrategy idleStrategy) {
+		this.idleStrategy = idleStrategy;
+	}
+	
+	/**
+	 * Get how long the workers of this type wait when there is no work
+	 */
+	public IdleStrategy getIdleStrategy() {
+		if (this.idleStrategy == null) {
+			this.idleStrategy = new BackoffIdleStrategy();
+		}
+		return this.idleStrategy;
+	}
 }
@@ -0,0 +1,63 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+package drm.taskworker.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter that is local to this node
+ */
+public class Counter {
+	private String name;
+	private AtomicLong count = new AtomicLong();
+	
+	public Counter(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void inc() {
+		this.count.incrementAndGet();
+	}
+	
+	public void inc(long n) {
+		this.count.addAndGet(n);
+	}
+	
+	public void dec() {
+		this.count.decrementAndGet();
+	}
+	
+	public void dec(long n) {
+		this.count.addAndGet(-n);
+	}
+	
+	public long getCount() {
+		return this.count.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Counter [name=" + name + ", count=" + count + "]";
+	}
+}
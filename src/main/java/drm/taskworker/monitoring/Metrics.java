@@ -1,14 +1,42 @@
 package drm.taskworker.monitoring;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import dnet.minimetrics.MiniMetrics;
 import dnet.minimetrics.Timer;
 
 public class Metrics {
+	
+	private static ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
 
 	public static Timer timer(String name) {
 		return MiniMetrics.get().getTimer(name);
 	}
 
+	/**
+	 * Get the counter with the given name, the counter is created when it 
+	 * does not exist yet.
+	 */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter newCounter = new Counter(name);
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
 	
+	/**
+	 * Get all counters
+	 */
+	public static Map<String, Counter> getCounters() {
+		return Collections.unmodifiableMap(counters);
+	}
 
 }
@@ -0,0 +1,141 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.queue;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The jobs that have tasks queued for each worker type. A worker that has no
+ * job to lease from takes the jobs in round robin from this registry instead
+ * of scanning the queues of all jobs.
+ * 
+ * Each worker type has a set of active jobs and a ring with the same jobs in
+ * round robin order. A removed job stays in the ring until it reaches the 
+ * head, where it is dropped, so all operations are O(1) amortized. A job is 
+ * at most once in the ring, even when it is removed and added again before
+ * it reaches the head.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+class ActiveQueues {
+	private ConcurrentMap<String, Jobs> types = new ConcurrentHashMap<>();
+	
+	/**
+	 * The active jobs of one worker type
+	 */
+	private static class Jobs {
+		private ConcurrentMap<UUID, Boolean> active = new ConcurrentHashMap<>();
+		private ConcurrentMap<UUID, Boolean> ringed = new ConcurrentHashMap<>();
+		private ConcurrentLinkedQueue<UUID> ring = new ConcurrentLinkedQueue<>();
+		
+		private void offer(UUID jobId) {
+			if (this.ringed.putIfAbsent(jobId, Boolean.TRUE) == null) {
+				this.ring.offer(jobId);
+			}
+		}
+	}
+	
+	private Jobs getJobs(String workerType) {
+		Jobs jobs = this.types.get(workerType);
+		if (jobs == null) {
+			Jobs newJobs = new Jobs();
+			jobs = this.types.putIfAbsent(workerType, newJobs);
+			if (jobs == null) {
+				jobs = newJobs;
+			}
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Mark the queue of a job as active
+	 * 
+	 * @return True when the queue was not active yet
+	 */
+	public boolean add(String workerType, UUID jobId) {
+		Jobs jobs = this.getJobs(workerType);
+		if (jobs.active.putIfAbsent(jobId, Boolean.TRUE) == null) {
+			jobs.offer(jobId);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Mark the queues of the given jobs as active
+	 */
+	public void addAll(String workerType, Collection<UUID> jobIds) {
+		for (UUID jobId : jobIds) {
+			this.add(workerType, jobId);
+		}
+	}
+	
+	/**
+	 * Mark the queue of a job as empty
+	 */
+	public void remove(String workerType, UUID jobId) {
+		this.getJobs(workerType).active.remove(jobId);
+	}
+	
+	/**
+	 * Remove a job from all worker types
+	 */
+	public void removeJob(UUID jobId) {
+		for (Jobs jobs : this.types.values()) {
+			jobs.active.remove(jobId);
+		}
+	}
+	
+	/**
+	 * The next active job of a worker type in round robin order
+	 * 
+	 * @return The job id or null when no queue is active
+	 */
+	public UUID next(String workerType) {
+		Jobs jobs = this.getJobs(workerType);
+		
+		UUID jobId;
+		while ((jobId = jobs.ring.poll()) != null) {
+			if (jobs.active.containsKey(jobId)) {
+				jobs.ring.offer(jobId);
+				return jobId;
+			}
+			
+			// drop the removed job, unless it was added again before it left
+			// the ring
+			jobs.ringed.remove(jobId);
+			if (jobs.active.containsKey(jobId)) {
+				jobs.offer(jobId);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * The number of active queues of a worker type
+	 */
+	public int size(String workerType) {
+		return this.getJobs(workerType).active.size();
+	}
+}
@@ -0,0 +1,373 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.query.PreparedCqlQuery;
+import com.netflix.astyanax.recipes.locks.ColumnPrefixDistributedRowLock;
+import com.netflix.astyanax.retry.BoundedExponentialBackoff;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.Entities;
+import drm.taskworker.Statements;
+import drm.taskworker.WritePipeline;
+import drm.taskworker.config.Config;
+import drm.taskworker.monitoring.Metrics;
+
+/**
+ * Stores the queue in cassandra. The task_queue and task_delay tables are 
+ * read and written with quorum consistency.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+class CassandraQueueStore implements QueueStore {
+	private static Logger logger = Logger.getLogger(CassandraQueueStore.class.getCanonicalName());
+	
+	/**
+	 * Sends the updates of the depth counters off the lease and add path
+	 */
+	private WritePipeline depthWrites;
+	
+	public CassandraQueueStore() {
+		this.depthWrites = new WritePipeline(Config.getConfig().getProperty("taskworker.queue.depth.inflight", 32));
+	}
+	
+	private static TaskRow taskRow(ColumnList<String> c, UUID id) {
+		return new TaskRow(id, c.getLongValue("leased_until", 0L), c.getBooleanValue("removed", null));
+	}
+	
+	/**
+	 * Is the conditional statement of which these are the results applied
+	 */
+	private static boolean applied(Rows<String, String> rows) {
+		for (Row<String, String> row : rows) {
+			return row.getColumns().getBooleanValue("[applied]", false);
+		}
+		return false;
+	}
+	
+	/**
+	 * Build a query that executes the given update n times in one batch
+	 */
+	private static String batchQuery(String update, int n) {
+		if (n == 1) {
+			return update;
+		}
+		
+		StringBuilder query = new StringBuilder("BEGIN BATCH ");
+		for (int i = 0; i < n; i++) {
+			query.append(update).append("; ");
+		}
+		query.append("APPLY BATCH");
+		
+		return query.toString();
+	}
+
+	@Override
+	public List<TaskRow> readPage(String queueId, UUID after, int limit) throws ConnectionException {
+		Rows<String, String> rows;
+		if (after == null) {
+			rows = Statements.prepare(ConsistencyLevel.CL_QUORUM, "SELECT id, leased_until, removed FROM task_queue WHERE queue_id = ? LIMIT " + limit)
+					.withStringValue(queueId)
+					.execute().getResult().getRows();
+		} else {
+			rows = Statements.prepare(ConsistencyLevel.CL_QUORUM, "SELECT id, leased_until, removed FROM task_queue WHERE queue_id = ? AND id > ? LIMIT " + limit)
+					.withStringValue(queueId)
+					.withUUIDValue(after)
+					.execute().getResult().getRows();
+		}
+		
+		List<TaskRow> page = new ArrayList<>(rows.size());
+		for (Row<String, String> row : rows) {
+			ColumnList<String> c = row.getColumns();
+			page.add(taskRow(c, c.getUUIDValue("id", null)));
+		}
+		return page;
+	}
+
+	@Override
+	public TaskRow readTask(String queueId, UUID id) throws ConnectionException {
+		TaskRow task = null;
+		for (Row<String, String> row : Statements.prepare(ConsistencyLevel.CL_QUORUM, "SELECT leased_until, removed FROM task_queue WHERE queue_id = ? AND id = ?")
+				.withStringValue(queueId)
+				.withUUIDValue(id)
+				.execute().getResult().getRows()) {
+			task = taskRow(row.getColumns(), id);
+		}
+		return task;
+	}
+
+	/**
+	 * More than one task is leased in a single batch so all updates are sent
+	 * in one round-trip.
+	 */
+	@Override
+	public void lease(String queueId, List<UUID> ids, long leasedUntil) throws ConnectionException {
+		PreparedCqlQuery<String, String> lease = Statements.prepare(ConsistencyLevel.CL_QUORUM, 
+				batchQuery("UPDATE task_queue SET leased_until = ? WHERE queue_id = ? AND id = ?", ids.size()));
+		
+		for (UUID id : ids) {
+			lease
+					.withLongValue(leasedUntil)
+					.withStringValue(queueId)
+					.withUUIDValue(id);
+		}
+		lease.execute();
+	}
+
+	@Override
+	public boolean claim(String queueId, UUID id, long expected, long leasedUntil) throws ConnectionException {
+		return applied(Statements.prepare(ConsistencyLevel.CL_QUORUM, "UPDATE task_queue SET leased_until = ? WHERE queue_id = ? AND id = ? IF leased_until = ? AND removed = false")
+				.withLongValue(leasedUntil)
+				.withStringValue(queueId)
+				.withUUIDValue(id)
+				.withLongValue(expected)
+				.execute().getResult().getRows());
+	}
+
+	@Override
+	public void renew(Map<UUID, String> tasks, long leasedUntil) throws ConnectionException {
+		PreparedCqlQuery<String, String> renew = Statements.prepare(ConsistencyLevel.CL_QUORUM, 
+				batchQuery("UPDATE task_queue SET leased_until = ? WHERE queue_id = ? AND id = ?", tasks.size()));
+		
+		for (Map.Entry<UUID, String> task : tasks.entrySet()) {
+			renew
+					.withLongValue(leasedUntil)
+					.withStringValue(task.getValue())
+					.withUUIDValue(task.getKey());
+		}
+		renew.execute();
+	}
+
+	@Override
+	public void resetLease(String queueId, UUID id) throws ConnectionException {
+		Statements.prepare(ConsistencyLevel.CL_QUORUM, "UPDATE task_queue SET leased_until = 0 WHERE queue_id = ? AND id = ?")
+				.withStringValue(queueId)
+				.withUUIDValue(id)
+				.execute();
+	}
+
+	@Override
+	public void insertFree(String queueId, UUID id) throws ConnectionException {
+		Statements.prepare(ConsistencyLevel.CL_QUORUM, "INSERT INTO task_queue (queue_id, id, leased_until, removed) VALUES (?, ?, 0, false)")
+				.withStringValue(queueId)
+				.withUUIDValue(id)
+				.execute();
+	}
+
+	@Override
+	public boolean insertFreeIfAbsent(String queueId, UUID id) throws ConnectionException {
+		return applied(Statements.prepare(ConsistencyLevel.CL_QUORUM, 
+				"INSERT INTO task_queue (queue_id, id, leased_until, removed) VALUES (?, ?, 0, false) IF NOT EXISTS")
+				.withStringValue(queueId)
+				.withUUIDValue(id)
+				.execute().getResult().getRows());
+	}
+
+	@Override
+	public void markFinished(String queueId, UUID id, int ttl) throws ConnectionException {
+		Statements.prepare(ConsistencyLevel.CL_QUORUM, "INSERT INTO task_queue (queue_id, id, leased_until, removed) VALUES (?, ?, 0, true) USING TTL " + ttl)
+				.withStringValue(queueId)
+				.withUUIDValue(id)
+				.execute();
+	}
+
+	@Override
+	public void addDelay(String queueId, long visibleAfter, UUID id) throws ConnectionException {
+		Statements.prepare(ConsistencyLevel.CL_QUORUM, "INSERT INTO task_delay (queue_id, visible_after, id) VALUES (?, ?, ?)")
+				.withStringValue(queueId)
+				.withLongValue(visibleAfter)
+				.withUUIDValue(id)
+				.execute();
+	}
+
+	@Override
+	public List<Delay> readDue(String queueId, long now, int limit) throws ConnectionException {
+		Rows<String, String> rows = Statements.prepare(ConsistencyLevel.CL_QUORUM, 
+				"SELECT visible_after, id FROM task_delay WHERE queue_id = ? AND visible_after <= ? LIMIT " + limit)
+				.withStringValue(queueId)
+				.withLongValue(now)
+				.execute().getResult().getRows();
+		
+		List<Delay> due = new ArrayList<>(rows.size());
+		for (Row<String, String> row : rows) {
+			ColumnList<String> c = row.getColumns();
+			due.add(new Delay(c.getLongValue("visible_after", 0L), c.getUUIDValue("id", null)));
+		}
+		return due;
+	}
+
+	@Override
+	public boolean removeDelay(String queueId, Delay delay) throws ConnectionException {
+		return applied(Statements.prepare(ConsistencyLevel.CL_QUORUM, 
+				"DELETE FROM task_delay WHERE queue_id = ? AND visible_after = ? AND id = ? IF EXISTS")
+				.withStringValue(queueId)
+				.withLongValue(delay.getVisibleAfter())
+				.withUUIDValue(delay.getId())
+				.execute().getResult().getRows());
+	}
+
+	@Override
+	public void promote(String queueId, List<Delay> delays) throws ConnectionException {
+		StringBuilder query = new StringBuilder("BEGIN BATCH ");
+		for (int i = 0; i < delays.size(); i++) {
+			query.append("INSERT INTO task_queue (queue_id, id, leased_until, removed) VALUES (?, ?, 0, false); ");
+			query.append("DELETE FROM task_delay WHERE queue_id = ? AND visible_after = ? AND id = ?; ");
+		}
+		query.append("APPLY BATCH");
+		
+		PreparedCqlQuery<String, String> promote = Statements.prepare(ConsistencyLevel.CL_QUORUM, query.toString());
+		for (Delay delay : delays) {
+			promote
+					.withStringValue(queueId)
+					.withUUIDValue(delay.getId())
+					.withStringValue(queueId)
+					.withLongValue(delay.getVisibleAfter())
+					.withUUIDValue(delay.getId());
+		}
+		promote.execute();
+	}
+
+	@Override
+	public boolean hasTiming(UUID id) throws ConnectionException {
+		return Statements.prepare(ConsistencyLevel.CL_QUORUM, "SELECT * FROM task_timing WHERE id = ?")
+				.withUUIDValue(id)
+				.execute().getResult().getRows().size() > 0;
+	}
+
+	@Override
+	public List<UUID> readActive(String workerType) throws ConnectionException {
+		List<UUID> jobs = new ArrayList<>();
+		for (Row<String, String> row : Statements.prepare("SELECT job_id FROM active_queue WHERE worker_type = ?")
+				.withStringValue(workerType)
+				.execute().getResult().getRows()) {
+			jobs.add(row.getColumns().getUUIDValue("job_id", null));
+		}
+		return jobs;
+	}
+
+	@Override
+	public void addActive(String workerType, UUID jobId) throws ConnectionException {
+		Statements.prepare("INSERT INTO active_queue (worker_type, job_id) VALUES (?, ?)")
+				.withStringValue(workerType)
+				.withUUIDValue(jobId)
+				.execute();
+	}
+
+	/**
+	 * The update is sent through a write pipeline without waiting for it
+	 */
+	@Override
+	public void updateDepth(String workerType, UUID jobId, long pending, long leased) {
+		this.depthWrites.send(
+				Statements.prepare("UPDATE queue_depth SET pending = pending + ?, leased = leased + ? WHERE worker_type = ? AND job_id = ?")
+					.withLongValue(pending)
+					.withLongValue(leased)
+					.withStringValue(workerType)
+					.withUUIDValue(jobId), 
+				"update the queue depth of " + workerType + "-" + jobId);
+	}
+
+	@Override
+	public QueueDepth readDepth(String workerType, UUID jobId) throws ConnectionException {
+		return sumDepth(Statements.prepare("SELECT pending, leased FROM queue_depth WHERE worker_type = ? AND job_id = ?")
+				.withStringValue(workerType)
+				.withUUIDValue(jobId)
+				.execute().getResult().getRows());
+	}
+
+	@Override
+	public QueueDepth readDepth(String workerType) throws ConnectionException {
+		return sumDepth(Statements.prepare("SELECT pending, leased FROM queue_depth WHERE worker_type = ?")
+				.withStringValue(workerType)
+				.execute().getResult().getRows());
+	}
+	
+	private static QueueDepth sumDepth(Rows<String, String> rows) {
+		QueueDepth depth = new QueueDepth(0, 0);
+		for (Row<String, String> row : rows) {
+			ColumnList<String> c = row.getColumns();
+			depth = depth.add(new QueueDepth(c.getLongValue("pending", 0L), c.getLongValue("leased", 0L)));
+		}
+		return depth;
+	}
+
+	@Override
+	public void removeJob(String workerType, UUID jobId) throws ConnectionException {
+		Statements.prepare("DELETE FROM queue_depth WHERE worker_type = ? AND job_id = ?")
+				.withStringValue(workerType)
+				.withUUIDValue(jobId)
+				.execute();
+		Statements.prepare("DELETE FROM active_queue WHERE worker_type = ? AND job_id = ?")
+				.withStringValue(workerType)
+				.withUUIDValue(jobId)
+				.execute();
+	}
+
+	/**
+	 * A lock instance is only used for one acquire and release, so no lock 
+	 * objects are kept around.
+	 */
+	@Override
+	public Lock lock(String name) {
+		final ColumnPrefixDistributedRowLock<String> lock = new ColumnPrefixDistributedRowLock<String>(Entities.cs(), Entities.CF_STANDARD1, name)
+				.withBackoff(new BoundedExponentialBackoff(250, 10000, 10))
+				.expireLockAfter(1, TimeUnit.SECONDS);
+		
+		TimerContext tc = Metrics.timer("queue.lock").time();
+		try {
+			lock.acquire();
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Unable to aquire lock", e);
+			return null;
+		} finally {
+			tc.stop();
+		}
+		
+		return new Lock() {
+			@Override
+			public boolean release() {
+				TimerContext tc = Metrics.timer("queue.unlock").time();
+				try {
+					lock.release();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Unable to release lock", e);
+					return false;
+				} finally {
+					tc.stop();
+				}
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,99 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.queue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import drm.taskworker.config.Config;
+import drm.taskworker.tasks.Priority;
+
+/**
+ * Decides in which order the priority lanes of a queue are leased from. The
+ * higher lanes are drained first, but every quota-th lease of a worker type 
+ * starts at the lowest lane, so bulk tasks are not starved by a constant 
+ * flow of urgent tasks.
+ * 
+ * When lanes are disabled all tasks are in the normal lane.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class Lanes {
+	private static final Priority[] NORMAL_ONLY = {Priority.NORMAL};
+	private static final Priority[] HIGH_FIRST = {Priority.HIGH, Priority.NORMAL, Priority.BULK};
+	private static final Priority[] BULK_FIRST = {Priority.BULK, Priority.NORMAL, Priority.HIGH};
+	
+	private boolean enabled;
+	private int quota;
+	private ConcurrentMap<String, AtomicLong> leases = new ConcurrentHashMap<>();
+	
+	/**
+	 * Create the lanes set in the taskworker.queue.lanes and 
+	 * taskworker.queue.lanes.quota properties
+	 */
+	public Lanes() {
+		this(Config.getConfig().getProperty("taskworker.queue.lanes", false), 
+				Config.getConfig().getProperty("taskworker.queue.lanes.quota", 10));
+	}
+	
+	public Lanes(boolean enabled, int quota) {
+		if (quota < 1) {
+			throw new IllegalArgumentException("The lane quota should be at least one");
+		}
+		this.enabled = enabled;
+		this.quota = quota;
+	}
+	
+	/**
+	 * The lane that stores tasks with the given priority
+	 */
+	public Priority lane(Priority priority) {
+		if (!this.enabled || priority == null) {
+			return Priority.NORMAL;
+		}
+		return priority;
+	}
+	
+	/**
+	 * The order in which the lanes are leased from by the next lease of the
+	 * given worker type
+	 */
+	public Priority[] order(String taskType) {
+		if (!this.enabled) {
+			return NORMAL_ONLY;
+		}
+		
+		AtomicLong count = this.leases.get(taskType);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = this.leases.putIfAbsent(taskType, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		
+		if (count.incrementAndGet() % this.quota == 0) {
+			return BULK_FIRST;
+		}
+		return HIGH_FIRST;
+	}
+}
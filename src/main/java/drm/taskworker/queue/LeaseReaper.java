@@ -0,0 +1,169 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.queue;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.monitoring.Metrics;
+
+/**
+ * Settles the expired leases that the scans of a queue ran into. Settling a 
+ * lease needs a quorum read of the task timing and possibly a write at 
+ * consistency level ALL, which is too slow to do while leasing. A scan only 
+ * reports the expired leases it sees and the reaper settles them in the 
+ * background: tasks that did finish are removed from the queue, the others 
+ * are made free again so the next scan leases them.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class LeaseReaper implements Runnable {
+	private static Logger logger = Logger.getLogger(LeaseReaper.class.getCanonicalName());
+	
+	/**
+	 * The result of settling an expired lease
+	 */
+	enum Outcome {
+		/** The task finished but its removal from the queue failed */
+		SETTLED, 
+		/** The task was made free again */
+		RECLAIMED, 
+		/** The lease changed after it was reported */
+		SKIPPED
+	};
+	
+	private Queue queue;
+	private ConcurrentMap<UUID, ExpiredLease> expired = new ConcurrentHashMap<>();
+	private ScheduledExecutorService executor;
+	
+	/**
+	 * Create a reaper that settles the reported leases of the queue every 
+	 * interval.
+	 */
+	public LeaseReaper(Queue queue, long interval, TimeUnit unit) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("The reaper interval should be positive");
+		}
+		
+		this.queue = queue;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "lease-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(this, interval, interval, unit);
+	}
+	
+	/**
+	 * Report a lease that expired. A lease that is already reported is not
+	 * reported again.
+	 * 
+	 * @param queueId The bucket that stores the task
+	 * @param leasedUntil The lease that was read from the bucket
+	 */
+	public void report(String queueId, TaskHandle handle, long leasedUntil) {
+		this.expired.putIfAbsent(handle.getId(), new ExpiredLease(queueId, handle, leasedUntil));
+	}
+	
+	/**
+	 * Is the lease of the given task reported and not yet settled?
+	 */
+	public boolean isReported(UUID taskId) {
+		return this.expired.containsKey(taskId);
+	}
+	
+	/**
+	 * The number of reported leases that are not yet settled
+	 */
+	public int getPending() {
+		return this.expired.size();
+	}
+	
+	/**
+	 * Settle all reported leases. Leases that could not be settled because 
+	 * of a connection problem are retried on the next run.
+	 */
+	@Override
+	public void run() {
+		if (this.expired.isEmpty()) {
+			return;
+		}
+		
+		TimerContext tc = Metrics.timer("queue.reaper.run").time();
+		try {
+			for (ExpiredLease lease : this.expired.values()) {
+				try {
+					Outcome outcome = this.queue.settle(lease.queueId, lease.handle, lease.leasedUntil);
+					if (outcome == Outcome.RECLAIMED) {
+						logger.warning("Reclaimed task " + lease.handle.getId() + " from which the lease expired.");
+						Metrics.counter("queue.reaper.reclaimed").inc();
+					} else if (outcome == Outcome.SETTLED) {
+						Metrics.counter("queue.reaper.settled").inc();
+					}
+				} catch (ConnectionException e) {
+					logger.log(Level.WARNING, "Unable to settle lease of task " + lease.handle.getId(), e);
+					continue;
+				}
+				this.expired.remove(lease.handle.getId(), lease);
+			}
+		} catch (RuntimeException e) {
+			// an exception would cancel the next runs
+			logger.log(Level.SEVERE, "Lease reaper failed", e);
+		} finally {
+			tc.stop();
+		}
+	}
+	
+	/**
+	 * Stop the reaper
+	 */
+	public void stop() {
+		this.executor.shutdownNow();
+	}
+	
+	/**
+	 * A lease that was found expired by a scan
+	 */
+	private static class ExpiredLease {
+		private String queueId;
+		private TaskHandle handle;
+		private long leasedUntil;
+		
+		public ExpiredLease(String queueId, TaskHandle handle, long leasedUntil) {
+			this.queueId = queueId;
+			this.handle = handle;
+			this.leasedUntil = leasedUntil;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.queue;
+
+/**
+ * A fixed size table of lock objects. Keys are mapped on one of the locks
+ * based on their hash, so the table does not grow with the number of keys.
+ * Two keys can share the same lock, which only costs some extra contention.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class LockStripes {
+	private final Object[] locks;
+	private final int mask;
+	
+	/**
+	 * Create a lock table with at least the given number of stripes. The 
+	 * number is rounded up to a power of two.
+	 */
+	public LockStripes(int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("At least one stripe is required");
+		}
+		
+		int size = Integer.highestOneBit(stripes);
+		if (size < stripes) {
+			size <<= 1;
+		}
+		
+		this.locks = new Object[size];
+		for (int i = 0; i < size; i++) {
+			this.locks[i] = new Object();
+		}
+		this.mask = size - 1;
+	}
+	
+	/**
+	 * Get the lock object for the given key
+	 */
+	public Object get(String key) {
+		int hash = key.hashCode();
+		// spread the high bits because only the low bits select the stripe
+		hash ^= (hash >>> 16);
+		
+		return this.locks[hash & this.mask];
+	}
+	
+	/**
+	 * The number of stripes in this table
+	 */
+	public int size() {
+		return this.locks.length;
+	}
+}
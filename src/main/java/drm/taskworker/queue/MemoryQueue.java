@@ -0,0 +1,467 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.queue;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import dnet.minimetrics.TimerContext;
+import drm.taskworker.Job;
+import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.JobStateListener;
+import drm.taskworker.tasks.Priority;
+import drm.taskworker.tasks.Task;
+
+/**
+ * A queue implementation that keeps all tasks in memory. This queue is only
+ * usable when all workers run in the same JVM. Tasks in the queue do not
+ * survive a restart.
+ * 
+ * Each combination of worker type, job and priority lane has its own 
+ * lock-free deque. A leased task is removed from its deque and a timer puts it
+ * back in front of the deque when the lease expires before the task is 
+ * finished. The deques of a job are removed when the job finishes and are not
+ * created again by leases or delays that expire later. The depth
+ * of the deques is kept in counters, because the size of a deque is not a 
+ * constant time operation. A lease without a job takes the jobs with queued
+ * tasks in round robin order.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class MemoryQueue implements QueueBackend, JobStateListener {
+	private static Logger logger = Logger.getLogger(MemoryQueue.class.getCanonicalName());
+	
+	/**
+	 * How long a finished job is remembered, so that leases and delays that 
+	 * expire after the job finished do not recreate its deques
+	 */
+	static final long FINISHED_RETENTION = TimeUnit.MINUTES.toMillis(10);
+	
+	private ConcurrentMap<UUID, ConcurrentMap<String, ConcurrentLinkedDeque<TaskHandle>>> queues = new ConcurrentHashMap<>();
+	private ConcurrentMap<UUID, ConcurrentMap<String, Depth>> depths = new ConcurrentHashMap<>();
+	private ConcurrentMap<UUID, Lease> leases = new ConcurrentHashMap<>();
+	private Set<UUID> finished = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+	private ScheduledThreadPoolExecutor timer;
+	private Lanes lanes;
+	private ActiveQueues active = new ActiveQueues();
+	
+	/**
+	 * An active lease on a task
+	 */
+	private class Lease implements Runnable {
+		private TaskHandle handle;
+		private volatile ScheduledFuture<?> expiry;
+		
+		public Lease(TaskHandle handle) {
+			this.handle = handle;
+		}
+		
+		/**
+		 * The lease expired, put the task back in the queue if it was not 
+		 * finished in the mean time.
+		 */
+		@Override
+		public void run() {
+			if (leases.remove(this.handle.getId(), this)) {
+				logger.warning("Lease on task " + this.handle.getId() + " expired.");
+				Depth depth = getDepthCounter(this.handle.getWorkerName(), this.handle.getJobID());
+				depth.leased.decrementAndGet();
+				depth.pending.incrementAndGet();
+				
+				getQueue(this.handle.getWorkerName(), this.handle.getJobID(), this.handle.getPriority()).offerFirst(this.handle);
+				markActive(this.handle.getWorkerName(), this.handle.getJobID());
+			}
+		}
+	}
+	
+	/**
+	 * The depth counters of the deque of a worker type and job
+	 */
+	private static class Depth {
+		private AtomicLong pending = new AtomicLong();
+		private AtomicLong leased = new AtomicLong();
+		
+		private QueueDepth get() {
+			return new QueueDepth(this.pending.get(), this.leased.get());
+		}
+	}
+	
+	public MemoryQueue() {
+		this(new Lanes());
+	}
+	
+	/**
+	 * Create a memory queue with the given priority lanes
+	 */
+	MemoryQueue(Lanes lanes) {
+		this.lanes = lanes;
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "memory-queue-lease-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+	
+	/**
+	 * Get the deque of a priority lane of the given worker type and job. The
+	 * deque is created when it does not exist yet. A finished job gets an 
+	 * empty deque that is not kept.
+	 */
+	private ConcurrentLinkedDeque<TaskHandle> getQueue(String workerName, UUID jobId, Priority lane) {
+		String queueName = workerName;
+		if (lane != Priority.NORMAL) {
+			queueName += "-" + lane.name().toLowerCase();
+		}
+		
+		ConcurrentMap<String, ConcurrentLinkedDeque<TaskHandle>> jobQueues = this.queues.get(jobId);
+		if (jobQueues == null) {
+			if (this.finished.contains(jobId)) {
+				return new ConcurrentLinkedDeque<>();
+			}
+			
+			ConcurrentMap<String, ConcurrentLinkedDeque<TaskHandle>> newJobQueues = new ConcurrentHashMap<>();
+			jobQueues = this.queues.putIfAbsent(jobId, newJobQueues);
+			if (jobQueues == null) {
+				jobQueues = newJobQueues;
+				
+				// the job can finish between the check and the put
+				if (this.finished.contains(jobId)) {
+					this.queues.remove(jobId, newJobQueues);
+				}
+			}
+		}
+		
+		ConcurrentLinkedDeque<TaskHandle> queue = jobQueues.get(queueName);
+		if (queue == null) {
+			ConcurrentLinkedDeque<TaskHandle> newQueue = new ConcurrentLinkedDeque<>();
+			queue = jobQueues.putIfAbsent(queueName, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		
+		return queue;
+	}
+	
+	/**
+	 * Get the depth counters of the given worker type and job. The counters
+	 * are created when they do not exist yet. A finished job gets counters 
+	 * that are not kept.
+	 */
+	private Depth getDepthCounter(String workerName, UUID jobId) {
+		ConcurrentMap<String, Depth> jobDepths = this.depths.get(jobId);
+		if (jobDepths == null) {
+			if (this.finished.contains(jobId)) {
+				return new Depth();
+			}
+			
+			ConcurrentMap<String, Depth> newJobDepths = new ConcurrentHashMap<>();
+			jobDepths = this.depths.putIfAbsent(jobId, newJobDepths);
+			if (jobDepths == null) {
+				jobDepths = newJobDepths;
+				
+				if (this.finished.contains(jobId)) {
+					this.depths.remove(jobId, newJobDepths);
+				}
+			}
+		}
+		
+		Depth depth = jobDepths.get(workerName);
+		if (depth == null) {
+			Depth newDepth = new Depth();
+			depth = jobDepths.putIfAbsent(workerName, newDepth);
+			if (depth == null) {
+				depth = newDepth;
+			}
+		}
+		
+		return depth;
+	}
+	
+	/**
+	 * The number of jobs for which this queue holds deques
+	 */
+	int getJobCount() {
+		return this.queues.size();
+	}
+
+	@Override
+	public List<TaskHandle> leaseTasks(long lease, TimeUnit unit, int limit,
+			String taskType, UUID jobId) {
+		List<TaskHandle> handles = new LinkedList<>();
+		
+		if (jobId == null) {
+			return this.leaseFromActive(lease, unit, limit, taskType);
+		}
+		
+		TimerContext tc = Metrics.timer("queue.lease").time();
+		Depth depth = this.getDepthCounter(taskType, jobId);
+		for (Priority lane : this.lanes.order(taskType)) {
+			ConcurrentLinkedDeque<TaskHandle> queue = this.getQueue(taskType, jobId, lane);
+			while (handles.size() < limit) {
+				TaskHandle handle = queue.pollFirst();
+				if (handle == null) {
+					break;
+				}
+				
+				Lease taskLease = new Lease(handle);
+				this.leases.put(handle.getId(), taskLease);
+				depth.pending.decrementAndGet();
+				depth.leased.incrementAndGet();
+				taskLease.expiry = this.timer.schedule(taskLease, lease, unit);
+				
+				handles.add(handle);
+			}
+		}
+		tc.stop();
+		
+		return handles;
+	}
+
+	/**
+	 * Lease tasks from the jobs that have queued tasks. Each active job is 
+	 * tried at most once and a job without queued tasks is no longer active.
+	 */
+	private List<TaskHandle> leaseFromActive(long lease, TimeUnit unit, int limit, String taskType) {
+		List<TaskHandle> handles = new LinkedList<>();
+		
+		int jobs = this.active.size(taskType);
+		for (int i = 0; i < jobs && handles.size() < limit; i++) {
+			UUID jobId = this.active.next(taskType);
+			if (jobId == null) {
+				break;
+			}
+			
+			List<TaskHandle> leased = this.leaseTasks(lease, unit, limit - handles.size(), taskType, jobId);
+			if (leased.isEmpty()) {
+				this.active.remove(taskType, jobId);
+				
+				// a task can be added between the lease and the remove
+				if (this.hasQueued(taskType, jobId)) {
+					this.markActive(taskType, jobId);
+				}
+			}
+			handles.addAll(leased);
+		}
+		
+		return handles;
+	}
+	
+	/**
+	 * Mark the deques of a worker type and job as active, unless the job 
+	 * finished
+	 */
+	private void markActive(String taskType, UUID jobId) {
+		this.active.add(taskType, jobId);
+		
+		// the job can finish between the check and the add
+		if (this.finished.contains(jobId)) {
+			this.active.removeJob(jobId);
+		}
+	}
+	
+	/**
+	 * Is there a task in one of the lanes of a worker type and job
+	 */
+	private boolean hasQueued(String taskType, UUID jobId) {
+		for (Priority lane : Priority.values()) {
+			if (!this.getQueue(taskType, jobId, this.lanes.lane(lane)).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public void renewLeases(List<Task> tasks, long lease, TimeUnit unit) {
+		for (Task task : tasks) {
+			Lease taskLease = this.leases.get(task.getId());
+			if (taskLease == null) {
+				continue;
+			}
+			
+			// an expiry that already fired or fires later finds the lease 
+			// removed or replaced and does nothing
+			ScheduledFuture<?> expiry = taskLease.expiry;
+			taskLease.expiry = this.timer.schedule(taskLease, lease, unit);
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+		}
+	}
+
+	@Override
+	public void addTask(Task task) {
+		this.addTask(task, 0);
+	}
+
+	/**
+	 * Add a task to the queue. A delayed task is added to its deque by the
+	 * timer when it is due.
+	 */
+	@Override
+	public void addTask(Task task, long visibleAfter) {
+		TimerContext tc = Metrics.timer("queue.addtask").time();
+		logger.info("Inserting task " + task.getId());
+		
+		final TaskHandle handle = new TaskHandle();
+		handle.setJobID(task.getJobId());
+		handle.setId(task.getId());
+		handle.setWorkerName(task.getWorker());
+		handle.setPriority(this.lanes.lane(task.getPriority()));
+		
+		this.getDepthCounter(task.getWorker(), task.getJobId()).pending.incrementAndGet();
+		
+		long delay = visibleAfter - System.currentTimeMillis();
+		if (delay > 0) {
+			this.timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					getQueue(handle.getWorkerName(), handle.getJobID(), handle.getPriority()).offerLast(handle);
+					markActive(handle.getWorkerName(), handle.getJobID());
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} else {
+			this.getQueue(task.getWorker(), task.getJobId(), handle.getPriority()).offerLast(handle);
+			this.markActive(task.getWorker(), task.getJobId());
+		}
+		tc.stop();
+	}
+
+	/**
+	 * Add a task unless it is leased or waits in its deque. The memory queue
+	 * does not remember finished tasks, they are lost with the node anyway.
+	 */
+	@Override
+	public synchronized void addTaskIfAbsent(Task task) {
+		if (this.leases.containsKey(task.getId())) {
+			return;
+		}
+		for (TaskHandle handle : this.getQueue(task.getWorker(), task.getJobId(), this.lanes.lane(task.getPriority()))) {
+			if (handle.getId().equals(task.getId())) {
+				return;
+			}
+		}
+		this.addTask(task);
+	}
+	
+	/**
+	 * Retry a task. Nothing can fail between the removal of the attempt and 
+	 * the addition of the retry in memory.
+	 */
+	@Override
+	public void retryTask(Task task, long visibleAfter) {
+		this.finishTask(task);
+		this.addTask(task, visibleAfter);
+	}
+
+	@Override
+	public void finishTask(Task task) {
+		TimerContext tc = Metrics.timer("queue.finish").time();
+		logger.info("Removing task " + task.getId());
+		
+		Depth depth = this.getDepthCounter(task.getWorker(), task.getJobId());
+		Lease lease = this.leases.remove(task.getId());
+		if (lease != null) {
+			depth.leased.decrementAndGet();
+			
+			// the timer does not requeue the task anymore, even when the 
+			// expiry is not scheduled yet
+			if (lease.expiry != null) {
+				lease.expiry.cancel(false);
+			}
+		} else {
+			// the task was not leased (or its lease expired), remove it from the queue
+			ConcurrentLinkedDeque<TaskHandle> queue = this.getQueue(task.getWorker(), task.getJobId(), this.lanes.lane(task.getPriority()));
+			for (TaskHandle handle : queue) {
+				if (handle.getId().equals(task.getId())) {
+					if (queue.remove(handle)) {
+						depth.pending.decrementAndGet();
+					}
+					break;
+				}
+			}
+		}
+		tc.stop();
+	}
+
+	@Override
+	public QueueDepth getDepth(String taskType, UUID jobId) {
+		return this.getDepthCounter(taskType, jobId).get();
+	}
+
+	@Override
+	public QueueDepth getDepth(String taskType) {
+		QueueDepth total = new QueueDepth(0, 0);
+		for (ConcurrentMap<String, Depth> jobDepths : this.depths.values()) {
+			Depth depth = jobDepths.get(taskType);
+			if (depth != null) {
+				total = total.add(depth.get());
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public void jobStarted(Job job) {
+	}
+
+	/**
+	 * A finished job has no tasks left, so drop all its deques
+	 */
+	@Override
+	public void jobFinished(Job job) {
+		this.jobFinished(job.getJobId());
+	}
+	
+	/**
+	 * Drop all deques of the given job and do not create them again until
+	 * the job is forgotten
+	 */
+	void jobFinished(final UUID jobId) {
+		this.finished.add(jobId);
+		this.queues.remove(jobId);
+		this.depths.remove(jobId);
+		this.active.removeJob(jobId);
+		
+		this.timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				finished.remove(jobId);
+			}
+		}, FINISHED_RETENTION, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,410 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the tables of the queue in memory, so the cassandra queue can be 
+ * benchmarked and tested without cassandra. The rows follow the cassandra 
+ * semantics the queue relies on: writes are upserts, each column of a row 
+ * has its own TTL and a conditional write is atomic per row.
+ * 
+ * The timing of tasks is not stored in the queue tables, so this store never
+ * reports a timing entry.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class MemoryQueueStore implements QueueStore {
+	private static final long NEVER = Long.MAX_VALUE;
+	private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+	
+	/**
+	 * A row of task_queue. Each expiry is the time the column expires, 0 when
+	 * the column is not set.
+	 */
+	private static class StoredRow {
+		private long markerExpires;
+		private long leasedUntil;
+		private long leasedExpires;
+		private boolean removed;
+		private long removedExpires;
+		
+		private boolean isLive(long now) {
+			return live(this.markerExpires, now) || live(this.leasedExpires, now) || live(this.removedExpires, now);
+		}
+		
+		private TaskRow read(UUID id, long now) {
+			return new TaskRow(id, live(this.leasedExpires, now) ? this.leasedUntil : 0, 
+					live(this.removedExpires, now) ? this.removed : null);
+		}
+		
+		private void setLease(long leasedUntil, long expires) {
+			this.leasedUntil = leasedUntil;
+			this.leasedExpires = expires;
+		}
+		
+		private void insert(boolean removed, long expires) {
+			this.markerExpires = expires;
+			this.setLease(0, expires);
+			this.removed = removed;
+			this.removedExpires = expires;
+		}
+	}
+	
+	private static final Comparator<Delay> DELAY_ORDER = new Comparator<Delay>() {
+		@Override
+		public int compare(Delay a, Delay b) {
+			int order = Long.compare(a.getVisibleAfter(), b.getVisibleAfter());
+			return (order != 0) ? order : a.getId().compareTo(b.getId());
+		}
+	};
+	
+	private ConcurrentMap<String, TreeMap<UUID, StoredRow>> buckets = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, TreeSet<Delay>> delays = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, Set<UUID>> active = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, ConcurrentMap<UUID, AtomicLong[]>> depths = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+	
+	private static boolean live(long expires, long now) {
+		return expires > now;
+	}
+	
+	private static long expires(int ttl) {
+		return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl);
+	}
+	
+	/**
+	 * Get a partition, the partition is created when it does not exist yet.
+	 * All access to a partition synchronizes on it.
+	 */
+	private static <K, V> V partition(ConcurrentMap<K, V> table, K key, V empty) {
+		V partition = table.putIfAbsent(key, empty);
+		return (partition == null) ? empty : partition;
+	}
+	
+	private TreeMap<UUID, StoredRow> bucket(String queueId) {
+		TreeMap<UUID, StoredRow> bucket = this.buckets.get(queueId);
+		if (bucket == null) {
+			bucket = partition(this.buckets, queueId, new TreeMap<UUID, StoredRow>());
+		}
+		return bucket;
+	}
+	
+	private TreeSet<Delay> delays(String queueId) {
+		TreeSet<Delay> delays = this.delays.get(queueId);
+		if (delays == null) {
+			delays = partition(this.delays, queueId, new TreeSet<Delay>(DELAY_ORDER));
+		}
+		return delays;
+	}
+	
+	/**
+	 * Get the row of a task, an update creates the row when it does not exist
+	 */
+	private static StoredRow row(TreeMap<UUID, StoredRow> bucket, UUID id) {
+		StoredRow row = bucket.get(id);
+		if (row == null) {
+			row = new StoredRow();
+			bucket.put(id, row);
+		}
+		return row;
+	}
+	
+	@Override
+	public List<TaskRow> readPage(String queueId, UUID after, int limit) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		List<TaskRow> page = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		
+		synchronized (bucket) {
+			Map<UUID, StoredRow> rows = (after == null) ? bucket : bucket.tailMap(after, false);
+			
+			List<UUID> expired = new ArrayList<>();
+			for (Map.Entry<UUID, StoredRow> row : rows.entrySet()) {
+				if (!row.getValue().isLive(now)) {
+					expired.add(row.getKey());
+					continue;
+				}
+				page.add(row.getValue().read(row.getKey(), now));
+				if (page.size() == limit) {
+					break;
+				}
+			}
+			
+			for (UUID id : expired) {
+				bucket.remove(id);
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public TaskRow readTask(String queueId, UUID id) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		long now = System.currentTimeMillis();
+		
+		synchronized (bucket) {
+			StoredRow row = bucket.get(id);
+			if (row == null || !row.isLive(now)) {
+				return null;
+			}
+			return row.read(id, now);
+		}
+	}
+
+	@Override
+	public void lease(String queueId, List<UUID> ids, long leasedUntil) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		synchronized (bucket) {
+			for (UUID id : ids) {
+				row(bucket, id).setLease(leasedUntil, NEVER);
+			}
+		}
+	}
+
+	@Override
+	public boolean claim(String queueId, UUID id, long expected, long leasedUntil) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		long now = System.currentTimeMillis();
+		
+		synchronized (bucket) {
+			StoredRow row = bucket.get(id);
+			if (row == null || !row.isLive(now)) {
+				return false;
+			}
+			
+			TaskRow current = row.read(id, now);
+			if (!live(row.leasedExpires, now) || current.getLeasedUntil() != expected 
+					|| !Boolean.FALSE.equals(current.getRemoved())) {
+				return false;
+			}
+			row.setLease(leasedUntil, NEVER);
+			return true;
+		}
+	}
+
+	@Override
+	public void renew(Map<UUID, String> tasks, long leasedUntil) {
+		for (Map.Entry<UUID, String> task : tasks.entrySet()) {
+			TreeMap<UUID, StoredRow> bucket = this.bucket(task.getValue());
+			synchronized (bucket) {
+				row(bucket, task.getKey()).setLease(leasedUntil, NEVER);
+			}
+		}
+	}
+
+	@Override
+	public void resetLease(String queueId, UUID id) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		synchronized (bucket) {
+			row(bucket, id).setLease(0, NEVER);
+		}
+	}
+
+	@Override
+	public void insertFree(String queueId, UUID id) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		synchronized (bucket) {
+			row(bucket, id).insert(false, NEVER);
+		}
+	}
+
+	@Override
+	public boolean insertFreeIfAbsent(String queueId, UUID id) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		synchronized (bucket) {
+			StoredRow row = bucket.get(id);
+			if (row != null && row.isLive(System.currentTimeMillis())) {
+				return false;
+			}
+			row(bucket, id).insert(false, NEVER);
+			return true;
+		}
+	}
+
+	@Override
+	public void markFinished(String queueId, UUID id, int ttl) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		synchronized (bucket) {
+			row(bucket, id).insert(true, expires(ttl));
+		}
+	}
+
+	@Override
+	public void addDelay(String queueId, long visibleAfter, UUID id) {
+		TreeSet<Delay> delays = this.delays(queueId);
+		synchronized (delays) {
+			delays.add(new Delay(visibleAfter, id));
+		}
+	}
+
+	@Override
+	public List<Delay> readDue(String queueId, long now, int limit) {
+		TreeSet<Delay> delays = this.delays(queueId);
+		List<Delay> due = new ArrayList<>();
+		synchronized (delays) {
+			for (Delay delay : delays) {
+				if (delay.getVisibleAfter() > now || due.size() == limit) {
+					break;
+				}
+				due.add(delay);
+			}
+		}
+		return due;
+	}
+
+	@Override
+	public boolean removeDelay(String queueId, Delay delay) {
+		TreeSet<Delay> delays = this.delays(queueId);
+		synchronized (delays) {
+			return delays.remove(delay);
+		}
+	}
+
+	@Override
+	public void promote(String queueId, List<Delay> due) {
+		TreeMap<UUID, StoredRow> bucket = this.bucket(queueId);
+		TreeSet<Delay> delays = this.delays(queueId);
+		
+		// the bucket is always locked before its delays
+		synchronized (bucket) {
+			synchronized (delays) {
+				for (Delay delay : due) {
+					row(bucket, delay.getId()).insert(false, NEVER);
+					delays.remove(delay);
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean hasTiming(UUID id) {
+		return false;
+	}
+
+	@Override
+	public List<UUID> readActive(String workerType) {
+		Set<UUID> jobs = this.active.get(workerType);
+		if (jobs == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<>(jobs);
+	}
+
+	@Override
+	public void addActive(String workerType, UUID jobId) {
+		Set<UUID> jobs = this.active.get(workerType);
+		if (jobs == null) {
+			jobs = partition(this.active, workerType, Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>()));
+		}
+		jobs.add(jobId);
+	}
+
+	@Override
+	public void updateDepth(String workerType, UUID jobId, long pending, long leased) {
+		ConcurrentMap<UUID, AtomicLong[]> jobs = this.depths.get(workerType);
+		if (jobs == null) {
+			jobs = partition(this.depths, workerType, new ConcurrentHashMap<UUID, AtomicLong[]>());
+		}
+		
+		AtomicLong[] counters = jobs.get(jobId);
+		if (counters == null) {
+			counters = partition(jobs, jobId, new AtomicLong[] {new AtomicLong(), new AtomicLong()});
+		}
+		counters[0].addAndGet(pending);
+		counters[1].addAndGet(leased);
+	}
+
+	@Override
+	public QueueDepth readDepth(String workerType, UUID jobId) {
+		ConcurrentMap<UUID, AtomicLong[]> jobs = this.depths.get(workerType);
+		AtomicLong[] counters = (jobs == null) ? null : jobs.get(jobId);
+		if (counters == null) {
+			return new QueueDepth(0, 0);
+		}
+		return new QueueDepth(counters[0].get(), counters[1].get());
+	}
+
+	@Override
+	public QueueDepth readDepth(String workerType) {
+		QueueDepth depth = new QueueDepth(0, 0);
+		ConcurrentMap<UUID, AtomicLong[]> jobs = this.depths.get(workerType);
+		if (jobs != null) {
+			for (AtomicLong[] counters : jobs.values()) {
+				depth = depth.add(new QueueDepth(counters[0].get(), counters[1].get()));
+			}
+		}
+		return depth;
+	}
+
+	@Override
+	public void removeJob(String workerType, UUID jobId) {
+		ConcurrentMap<UUID, AtomicLong[]> jobs = this.depths.get(workerType);
+		if (jobs != null) {
+			jobs.remove(jobId);
+		}
+		Set<UUID> active = this.active.get(workerType);
+		if (active != null) {
+			active.remove(jobId);
+		}
+	}
+
+	/**
+	 * Wait for the lock for at most LOCK_TIMEOUT milliseconds
+	 */
+	@Override
+	public Lock lock(final String name) {
+		final Object owner = new Object();
+		long deadline = System.currentTimeMillis() + LOCK_TIMEOUT;
+		
+		while (this.locks.putIfAbsent(name, owner) != null) {
+			if (System.currentTimeMillis() > deadline) {
+				return null;
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		
+		return new Lock() {
+			@Override
+			public boolean release() {
+				return locks.remove(name, owner);
+			}
+		};
+	}
+}
@@ -19,330 +19,920 @@
 
 package drm.taskworker.queue;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.netflix.astyanax.Keyspace;
 import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
-import com.netflix.astyanax.model.ColumnList;
-import com.netflix.astyanax.model.ConsistencyLevel;
-import com.netflix.astyanax.model.CqlResult;
-import com.netflix.astyanax.model.Row;
-import com.netflix.astyanax.model.Rows;
-import com.netflix.astyanax.query.PreparedCqlQuery;
-import com.netflix.astyanax.recipes.locks.ColumnPrefixDistributedRowLock;
-import com.netflix.astyanax.retry.BoundedExponentialBackoff;
 
 import dnet.minimetrics.TimerContext;
-import drm.taskworker.Entities;
+import drm.taskworker.Job;
 import drm.taskworker.config.Config;
+import drm.taskworker.config.WorkerConfig;
 import drm.taskworker.monitoring.Metrics;
+import drm.taskworker.tasks.JobStateListener;
+import drm.taskworker.tasks.Priority;
 import drm.taskworker.tasks.Task;
 
 /**
- * A queue implementation on top of cassandra
+ * A queue implementation on top of cassandra. The tables are read and written
+ * through a QueueStore, so the queue also runs on the MemoryQueueStore.
  * 
  * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
  */
-public class Queue {
+public class Queue implements QueueBackend, JobStateListener {
 	private static Logger logger = Logger.getLogger(Queue.class.getCanonicalName());
 
-	private Keyspace cs;
-	private Map<String, ColumnPrefixDistributedRowLock<String>> locks = new HashMap<>();
-	private Map<String, Object> localLocks = new HashMap<>(); // TODO remove stale entries
+	private static final int LOCK_STRIPES = 64;
+	private static final int CURSORS = 1024;
+	private static final int CAS_SPREAD = 4;
+	private static final int RENEW_BATCH = 100;
 	
+	/**
+	 * How tasks are leased from the queue.
+	 * 
+	 * LOCK: take a (distributed) lock on the queue of a worker type and job,
+	 *       read the queue and lease the free tasks.
+	 * CAS: read the queue without a lock and claim each free task with a 
+	 *      conditional update on its lease. This requires cassandra 2.0 or 
+	 *      later for lightweight transactions.
+	 */
+	public enum LeaseMode {LOCK, CAS};
+
+	private QueueStore store;
+	private boolean distributed;
+	private LockStripes localLocks = new LockStripes(LOCK_STRIPES);
+	private LeaseMode leaseMode;
+	private int buckets;
+	private int fetchSize;
+	private int maxPages;
+	private long promoteInterval;
+	private LeaseReaper reaper;
+	private Lanes lanes;
+	private ActiveQueues active = new ActiveQueues();
+	private long activeInterval;
+	private long emptyInterval;
+	private int finishedTtl;
+	
+	/**
+	 * The position where the last scan of a bucket stopped. Only the most
+	 * recently used buckets are remembered.
+	 */
+	private Map<String, UUID> cursors = recentlyUsed(CURSORS);
+	
+	/**
+	 * When the delayed tasks of a bucket are checked again
+	 */
+	private Map<String, Long> promotions = recentlyUsed(CURSORS);
+	
+	/**
+	 * When the active queues of a worker type were last read from the 
+	 * active_queue table
+	 */
+	private Map<String, Long> activeRefreshed = new ConcurrentHashMap<>();
+	
+	/**
+	 * Until when the queue of a worker type and job is considered empty 
+	 * after a lease found no task in any of its buckets
+	 */
+	private Map<String, Long> emptyUntil = recentlyUsed(CURSORS);
+	
+	/**
+	 * Tracks whether a lease looked at every row of the buckets it read. Only
+	 * a complete sweep that found nothing shows that a queue is empty.
+	 */
+	private static class Sweep {
+		private boolean complete = true;
+	}
+	
+	/**
+	 * Create a queue that uses the lease mode set in the 
+	 * taskworker.queue.lease property.
+	 */
 	public Queue(String queueName) {
-		cs = Entities.cs();
+		this(queueName, LeaseMode.valueOf(Config.getConfig().getProperty("taskworker.queue.lease", "lock").toUpperCase()));
 	}
 	
-	private ColumnPrefixDistributedRowLock<String> getLock(String lockName) {
-		if (this.locks.containsKey(lockName)) {
-			return this.locks.get(lockName);
-		}
-		ColumnPrefixDistributedRowLock<String> lock = new ColumnPrefixDistributedRowLock<String>(this.cs, Entities.CF_STANDARD1, lockName)
-			.withBackoff(new BoundedExponentialBackoff(250, 10000, 10))
-	        .expireLockAfter(1, TimeUnit.SECONDS);
+	public Queue(String queueName, LeaseMode leaseMode) {
+		this(new CassandraQueueStore(), leaseMode);
+	}
+	
+	/**
+	 * Create a queue on the given store. The store locks are used when the 
+	 * taskworker.distributed property is set.
+	 */
+	public Queue(QueueStore store, LeaseMode leaseMode) {
+		this(store, leaseMode, Boolean.parseBoolean(Config.getConfig().getProperty("taskworker.distributed")));
+	}
+	
+	/**
+	 * Create a queue on the given store
+	 * 
+	 * @param distributed Lock a bucket in the store in lock mode
+	 */
+	Queue(QueueStore store, LeaseMode leaseMode, boolean distributed) {
+		this(store, leaseMode, distributed, new Lanes());
+	}
+	
+	/**
+	 * Create a queue on the given store with the given lanes
+	 * 
+	 * @param distributed Lock a bucket in the store in lock mode
+	 */
+	Queue(QueueStore store, LeaseMode leaseMode, boolean distributed, Lanes lanes) {
+		this.store = store;
+		this.leaseMode = leaseMode;
+		this.distributed = distributed;
+		this.lanes = lanes;
+		this.buckets = Config.getConfig().getProperty("taskworker.queue.buckets", 1);
+		this.fetchSize = Config.getConfig().getProperty("taskworker.queue.fetchsize", 100);
+		this.maxPages = Config.getConfig().getProperty("taskworker.queue.maxpages", 10);
+		this.promoteInterval = Config.getConfig().getProperty("taskworker.queue.delay.interval", 1000);
+		this.activeInterval = Config.getConfig().getProperty("taskworker.queue.active.interval", 5000);
+		this.emptyInterval = Config.getConfig().getProperty("taskworker.queue.empty.interval", 1000);
+		this.finishedTtl = Config.getConfig().getProperty("taskworker.queue.finished.ttl", 300);
 		
-		this.locks.put(lockName, lock);
+		if (this.buckets < 1) {
+			throw new IllegalArgumentException("A queue requires at least one bucket");
+		}
+		if (this.finishedTtl < 1) {
+			throw new IllegalArgumentException("Finished tasks should be kept at least one second");
+		}
 		
-		return lock; 
+		this.reaper = new LeaseReaper(this, 
+				Config.getConfig().getProperty("taskworker.queue.reaper.interval", 1), TimeUnit.SECONDS);
 	}
 	
-	private String lockName(String workerName, UUID workflowID) {
-		return workerName + "-" + workflowID.toString();
+	/**
+	 * A synchronized map that only keeps the most recently used entries
+	 */
+	private static <V> Map<String, V> recentlyUsed(final int size) {
+		return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > size;
+			}
+		});
 	}
 	
-	private boolean lock(String workerName, UUID workflowID) {
-		TimerContext tc = Metrics.timer("queue.lock").time();
-		
-		String lockName = this.lockName(workerName, workflowID);
-		ColumnPrefixDistributedRowLock<String> lock = this.getLock(lockName); 
-		try {
-			lock.acquire();
-		 } catch (Exception e) {
-			 logger.log(Level.SEVERE, "Unable to aquire lock", e);
-			 e.printStackTrace();
-			 return false;
-		 } finally {
-			 tc.stop();
-		 }
-		return true;
+	/**
+	 * The bucket that stores the given task. A task always maps on the same
+	 * bucket, so it can be found again from its id.
+	 */
+	private int bucket(UUID taskId) {
+		return (taskId.hashCode() & Integer.MAX_VALUE) % this.buckets;
 	}
 	
-	private boolean release(String workerName, UUID workflowID) {
-		TimerContext tc = Metrics.timer("queue.unlock").time();
+	/**
+	 * The partition key of a bucket of a priority lane of the queue of a 
+	 * worker type and job. This key is also the name of the lock on the 
+	 * bucket.
+	 */
+	private String queueId(String workerName, UUID jobId, int bucket, Priority lane) {
+		String queueId = workerName + "-" + jobId.toString();
 		
-		String lockName = this.lockName(workerName, workflowID);
-		ColumnPrefixDistributedRowLock<String> lock = this.getLock(lockName); 
-		try {
-			lock.release();
-		 } catch (Exception e) {
-			 logger.log(Level.SEVERE, "Unable to release lock", e);
-			 return false;
-		 } finally {
-			 tc.stop();
-		 }
-		return true;
+		// a queue with one bucket keeps the original partition key
+		if (this.buckets > 1) {
+			queueId += "-" + bucket;
+		}
+		
+		// and so does the normal lane
+		if (lane != Priority.NORMAL) {
+			queueId += "-" + lane.name().toLowerCase();
+		}
+		return queueId;
 	}
-
+	
+	/**
+	 * The partition key of the bucket that stores the given task
+	 */
+	private String queueId(Task task) {
+		return this.queueId(task.getWorker(), task.getJobId(), this.bucket(task.getId()), 
+				this.lanes.lane(task.getPriority()));
+	}
+	
 	/**
 	 * Lease a task from the queue
 	 * 
-	 * @param lease
-	 *            How long is the task leased
-	 * @param unit
-	 *            The timeunit of the lease time
-	 * @param limit
-	 *            How many task are to be leased
-	 * @param taskType
-	 *            The type of task (the name / type of the worker)
-	 * @param jobId
-	 *            The workflow the task belongs to
-	 * @return A list of taskhandles 
-	 * @throws ConnectionException
+	 * @see QueueBackend#leaseTasks(long, TimeUnit, int, String, UUID)
 	 */
+	@Override
 	public List<TaskHandle> leaseTasks(long lease,
 			TimeUnit unit, int limit, String taskType, UUID jobId)
 			throws ConnectionException {
 		
 		if (jobId == null) {
-			return new LinkedList<>();
+			return this.leaseFromActive(lease, unit, limit, taskType);
 		}
 		
-		List<TaskHandle> handles = null;
-		
-		boolean distributed = Boolean.parseBoolean(Config.getConfig().getProperty("taskworker.distributed"));
-		String lockKey = this.lockName(taskType, jobId);
-		Object lockObject = null;
+		List<TaskHandle> handles = new LinkedList<>();
+		Sweep sweep = new Sweep();
+		if (this.isEmpty(taskType, jobId)) {
+			Metrics.counter("queue.empty.skipped").inc();
+			return handles;
+		}
 		
-		if (!this.localLocks.containsKey(lockKey)) {
-			synchronized (this.localLocks) {
-				if (!this.localLocks.containsKey(lockKey)) {
-					lockObject = new Object();
-					this.localLocks.put(lockKey, lockObject);
-				}else{
-					lockObject = this.localLocks.get(lockKey);
+		// start at a random bucket so consumers spread over the buckets
+		int first = ThreadLocalRandom.current().nextInt(this.buckets);
+		for (Priority lane : this.lanes.order(taskType)) {
+			// a lane that fills the limit ends the lease before the buckets of
+			// the next lane are locked
+			if (handles.size() >= limit) {
+				break;
+			}
+			for (int i = 0; i < this.buckets && handles.size() < limit; i++) {
+				String queueId = this.queueId(taskType, jobId, (first + i) % this.buckets, lane);
+				
+				List<TaskHandle> leased;
+				if (this.leaseMode == LeaseMode.CAS) {
+					TimerContext tc = Metrics.timer("queue.lease").time();
+					try {
+						leased = leaseWithCas(lease, unit, limit - handles.size(), taskType, jobId, queueId, sweep);
+					} finally {
+						tc.stop();
+					}
+				} else {
+					leased = leaseWithLock(lease, unit, limit - handles.size(), taskType, jobId, queueId, sweep);
+				}
+				
+				for (TaskHandle handle : leased) {
+					handle.setPriority(lane);
+					handles.add(handle);
 				}
 			}
-		} else {
-			lockObject = this.localLocks.get(lockKey);
 		}
+		
+		if (!handles.isEmpty()) {
+			this.updateDepth(taskType, jobId, -handles.size(), handles.size());
+		} else if (sweep.complete) {
+			this.emptyUntil.put(taskType + "-" + jobId, System.currentTimeMillis() + this.emptyInterval);
+		}
+
+		return handles;
+	}
+	
+	/**
+	 * Is the queue of a worker type and job known to be empty? After a lease
+	 * read every row of every bucket and found no free task, the buckets are
+	 * not read again for emptyInterval milliseconds unless a task is added or
+	 * a lease is reclaimed on this node. A task that another node adds is 
+	 * found after the interval.
+	 */
+	private boolean isEmpty(String taskType, UUID jobId) {
+		Long until = this.emptyUntil.get(taskType + "-" + jobId);
+		if (until == null) {
+			return false;
+		}
+		if (until < System.currentTimeMillis()) {
+			this.emptyUntil.remove(taskType + "-" + jobId);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * The queue of a worker type and job has a task to lease again
+	 */
+	private void notEmpty(String workerName, UUID jobId) {
+		this.emptyUntil.remove(workerName + "-" + jobId);
+	}
+	
+	/**
+	 * Lease tasks from the jobs that have queued tasks, in round robin order.
+	 * Each active job is tried at most once and a job without tasks to lease
+	 * is no longer active on this node until a task is added to it or it is
+	 * read again from the active_queue table.
+	 */
+	private List<TaskHandle> leaseFromActive(long lease, TimeUnit unit, int limit, String taskType) 
+			throws ConnectionException {
+		this.refreshActive(taskType);
+		
+		List<TaskHandle> handles = new LinkedList<>();
+		int jobs = this.active.size(taskType);
+		for (int i = 0; i < jobs && handles.size() < limit; i++) {
+			UUID jobId = this.active.next(taskType);
+			if (jobId == null) {
+				break;
+			}
+			
+			List<TaskHandle> leased = this.leaseTasks(lease, unit, limit - handles.size(), taskType, jobId);
+			if (leased.isEmpty()) {
+				this.active.remove(taskType, jobId);
+				Metrics.counter("queue.active.miss").inc();
+			}
+			handles.addAll(leased);
+		}
+		
+		return handles;
+	}
+	
+	/**
+	 * Read the active queues of a worker type that were added by other nodes.
+	 * The table is read at most once every activeInterval milliseconds.
+	 */
+	private void refreshActive(String taskType) throws ConnectionException {
+		long now = System.currentTimeMillis();
+		Long refreshed = this.activeRefreshed.get(taskType);
+		if (refreshed != null && refreshed > now - this.activeInterval) {
+			return;
+		}
+		this.activeRefreshed.put(taskType, now);
+		
+		for (UUID jobId : this.store.readActive(taskType)) {
+			this.active.add(taskType, jobId);
+		}
+	}
+	
+	/**
+	 * Mark the queue of a worker type and job as active and not empty. The 
+	 * active_queue table is only written when the queue was not active on 
+	 * this node.
+	 */
+	private void markActive(String workerName, UUID jobId) throws ConnectionException {
+		this.notEmpty(workerName, jobId);
+		if (this.active.add(workerName, jobId)) {
+			this.store.addActive(workerName, jobId);
+		}
+	}
+	
+	/**
+	 * An operation on a bucket that needs the lock on the bucket
+	 */
+	private interface LockedOperation<T> {
+		T run() throws ConnectionException;
+	}
+	
+	/**
+	 * Run an operation under the local lock on a bucket and, when 
+	 * taskworker.distributed is set, the distributed lock on the bucket.
+	 * 
+	 * @param failed The result when the lock could not be acquired or released
+	 */
+	private <T> T locked(String queueId, T failed, LockedOperation<T> operation) throws ConnectionException {
+		boolean distributed = this.distributed;
 
-		//
-		synchronized (lockObject) { // first do a local lock, because the class is shared between all threads
+		// first do a local lock, because the class is shared between all threads
+		synchronized (this.localLocks.get(queueId)) {
 			// get a lock if distributed is true
-			if (distributed && !this.lock(taskType, jobId)) {
-				logger.warning("Unable to aquire a lock on " + jobId.toString() + " - " + taskType);
-				return handles;
+			QueueStore.Lock lock = null;
+			if (distributed) {
+				lock = this.store.lock(queueId);
+				if (lock == null) {
+					logger.warning("Unable to aquire a lock on " + queueId);
+					return failed;
+				}
 			}
 	
-			TimerContext tc = Metrics.timer("queue.lease").time();
-			handles = leaseWithNoLock(lease, unit, limit, taskType, jobId);
-			tc.stop();
+			T result = failed;
+			try {
+				result = operation.run();
+			} finally {
+				// release the lock if distributed true, the result of a
+				// failed release is dropped
+				if (distributed && !lock.release()) {
+					logger.warning("Unable to release lock on " + queueId);
+					result = failed;
+				}
+			}
+			return result;
+		}
+	}
 	
-			// release the lock if distributed true
-			if (distributed && !this.release(taskType, jobId)) {
-				logger.warning("Unable to release lock on " + jobId.toString() + " - " + taskType);
-				return null;
+	/**
+	 * Lease tasks from one bucket under a lock on that bucket. The leases of
+	 * a failed lock release are not handed out and will expire.
+	 * 
+	 * @return The leased tasks, an empty list when the lock failed
+	 */
+	private List<TaskHandle> leaseWithLock(final long lease, final TimeUnit unit, final int limit,
+			final String taskType, final UUID jobId, final String queueId, final Sweep sweep) 
+			throws ConnectionException {
+		List<TaskHandle> failed = new LinkedList<>();
+		List<TaskHandle> handles = this.locked(queueId, failed, new LockedOperation<List<TaskHandle>>() {
+			@Override
+			public List<TaskHandle> run() throws ConnectionException {
+				TimerContext tc = Metrics.timer("queue.lease").time();
+				try {
+					return leaseWithNoLock(lease, unit, limit, taskType, jobId, queueId, sweep);
+				} finally {
+					tc.stop();
+				}
 			}
+		});
+		
+		// the bucket was not read
+		if (handles == failed) {
+			sweep.complete = false;
 		}
-
 		return handles;
 	}
 	
-	private boolean handleExpiredLease(TaskHandle task) throws ConnectionException{
+	/**
+	 * Settle an expired lease that was reported to the reaper. When the task
+	 * has a timing entry it did finish and it is marked as finished again, 
+	 * otherwise the lease is reset so the task can be leased again. The lease
+	 * is only reset when it did not change since the scan that reported it.
+	 */
+	LeaseReaper.Outcome settle(final String queueId, final TaskHandle handle, final long leasedUntil) 
+			throws ConnectionException {
 		// check if the task has a timing entry which also marks a task as
-		// finished. If so, ignore the task and try to do yet an other delete.
-		PreparedCqlQuery<String, String> findTask = cs.prepareQuery(Entities.CF_STANDARD1)
-				.setConsistencyLevel(ConsistencyLevel.CL_QUORUM)
-				.withCql("SELECT * FROM task_timing WHERE id = ?")
-				.asPreparedStatement();
-		
-		CqlResult<String, String> result = findTask
-				.withUUIDValue(task.getId())
-				.execute().getResult();
-		Rows<String, String> rows = result.getRows();
-		
-		if (rows.size() > 0) {
-			// the task did finish, try to mark it as removed once again
-			PreparedCqlQuery<String, String> markDelete = cs.prepareQuery(Entities.CF_STANDARD1)
-					.setConsistencyLevel(ConsistencyLevel.CL_ALL)
-					.withCql("UPDATE task_queue SET removed = true WHERE queue_id = ? AND id = ?")
-					.asPreparedStatement();
-			
-			markDelete
-					.withStringValue(this.lockName(task.getWorkerName(), task.getJobID()))
-					.withUUIDValue(task.getId())
-					.execute().getResult();
-			
-			return false;
-		} else {
-			// this is a real expired
-			logger.warning("Leasing task " + task.getId() + " from which the lease expired.");
-			return true;
+		// finished. If so, try to remove it once again.
+		if (this.store.hasTiming(handle.getId())) {
+			this.markFinished(queueId, handle.getId());
+			this.updateDepth(handle.getWorkerName(), handle.getJobID(), 0, -1);
+			return LeaseReaper.Outcome.SETTLED;
+		}
+		
+		// this is a real expire
+		if (this.leaseMode == LeaseMode.CAS) {
+			if (!this.claim(queueId, handle, leasedUntil, 0)) {
+				return LeaseReaper.Outcome.SKIPPED;
+			}
+			this.updateDepth(handle.getWorkerName(), handle.getJobID(), 1, -1);
+			this.notEmpty(handle.getWorkerName(), handle.getJobID());
+			return LeaseReaper.Outcome.RECLAIMED;
 		}
+		
+		return this.locked(queueId, LeaseReaper.Outcome.SKIPPED, new LockedOperation<LeaseReaper.Outcome>() {
+			@Override
+			public LeaseReaper.Outcome run() throws ConnectionException {
+				QueueStore.TaskRow row = store.readTask(queueId, handle.getId());
+				
+				// the task was finished or leased again in the mean time
+				if (row == null || !Boolean.FALSE.equals(row.getRemoved())
+						|| row.getLeasedUntil() != leasedUntil) {
+					return LeaseReaper.Outcome.SKIPPED;
+				}
+				
+				store.resetLease(queueId, handle.getId());
+				
+				updateDepth(handle.getWorkerName(), handle.getJobID(), 1, -1);
+				notEmpty(handle.getWorkerName(), handle.getJobID());
+				return LeaseReaper.Outcome.RECLAIMED;
+			}
+		});
 	}
 
 	/**
-	 * Lease tasks without requesting a lock
+	 * Lease tasks from one bucket without requesting a lock
 	 * 
-	 * @pre requires a lock
+	 * @pre requires a lock on the bucket
 	 * @see Queue#leaseTasks(long, TimeUnit, int, String, UUID)
 	 */
 	private List<TaskHandle> leaseWithNoLock(long lease, TimeUnit unit, int limit,
-			String taskType, UUID workflowId) throws ConnectionException {
+			String taskType, UUID workflowId, String queueId, Sweep sweep) throws ConnectionException {
 		List<TaskHandle> handles = new LinkedList<>();
 		
 		if (workflowId == null) {
 			return handles;
 		}
 		
-		if (limit != 1) {
-			throw new IllegalArgumentException("Limit more than one not supported!");
+		if (limit < 1) {
+			throw new IllegalArgumentException("At least one task should be leased");
 		}
 		
 		long leaseSeconds = unit.toMillis(lease);
 		long now = System.currentTimeMillis();
 		
-		// try to dequeue a task (type = 0 and lease = false)
-		PreparedCqlQuery<String, String> findTasks = cs.prepareQuery(Entities.CF_STANDARD1)
-				.setConsistencyLevel(ConsistencyLevel.CL_QUORUM)
-				.withCql("SELECT * FROM task_queue WHERE queue_id = ?")
-				.asPreparedStatement();
+		this.promote(queueId, now);
 		
-		CqlResult<String, String> result = findTasks
-				.withStringValue(this.lockName(taskType, workflowId))
-				.execute().getResult();
-		Rows<String, String> rows = result.getRows();
+		// try to dequeue tasks that do not have a lease on them
+		handles.addAll(this.scan(queueId, taskType, workflowId, limit, now, sweep));
 		
-		for (Row<String, String> row : rows) {	
-			ColumnList<String> c = row.getColumns();
-
-			// add all work tasks that do not have a lease on them
-			if (c.getBooleanValue("removed", null) == null || c.getBooleanValue("removed", null)) {
-				// ignore, strange cassandra crap going on
+		// "lease" the tasks with one batch, a lease does not touch the 
+		// finished marker so it never brings back a finished task
+		if (handles.size() > 0) {
+			List<UUID> ids = new ArrayList<>(handles.size());
+			for (TaskHandle handle : handles) {
+				ids.add(handle.getId());
+			}
+			this.store.lease(queueId, ids, now + leaseSeconds);
+		}
+		
+		return handles;
+	}
+	
+	/**
+	 * Lease tasks from one bucket by claiming each task with a conditional 
+	 * update. Competing workers read the same bucket but start claiming at a
+	 * random position, so they mostly claim different tasks in parallel. A 
+	 * claim only fails when another worker leased the task after it was read.
+	 * 
+	 * @see Queue#leaseTasks(long, TimeUnit, int, String, UUID)
+	 */
+	private List<TaskHandle> leaseWithCas(long lease, TimeUnit unit, int limit,
+			String taskType, UUID jobId, String queueId, Sweep sweep) throws ConnectionException {
+		List<TaskHandle> handles = new LinkedList<>();
+		
+		if (limit < 1) {
+			throw new IllegalArgumentException("At least one task should be leased");
+		}
+		
+		long now = System.currentTimeMillis();
+		
+		this.promote(queueId, now);
+		
+		// collect more tasks than needed, so competing workers have room to
+		// claim different tasks
+		List<TaskHandle> candidates = this.scan(queueId, taskType, jobId, limit * CAS_SPREAD, now, sweep);
+		if (candidates.isEmpty()) {
+			return handles;
+		}
+		
+		int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+		for (int i = 0; i < candidates.size() && handles.size() < limit; i++) {
+			TaskHandle handle = candidates.get((offset + i) % candidates.size());
+			
+			if (this.claim(queueId, handle, 0, now + unit.toMillis(lease))) {
+				handles.add(handle);
 			} else {
-				long leased_until = c.getLongValue("leased_until", 0L);
-
-				if (leased_until < now) {
-					TaskHandle handle = new TaskHandle();
-					handle.setJobID(workflowId);
-					handle.setId(c.getUUIDValue("id", null));
-					handle.setWorkerName(taskType);
+				Metrics.counter("queue.lease.cas.conflict").inc();
+				sweep.complete = false;
+			}
+		}
+		
+		return handles;
+	}
+	
+	/**
+	 * Find free tasks in a bucket. Tasks of which the lease expired are not
+	 * returned but reported to the reaper, which frees them again.
+	 * 
+	 * The bucket is read in pages of fetchSize rows and the scan stops as 
+	 * soon as enough tasks are found or after maxPages pages. Each scan 
+	 * continues after the last row the previous scan of the bucket read, 
+	 * because the rows before it were leased or handed out. When the end of
+	 * the bucket is reached the scan wraps around to the start once, which 
+	 * also picks up tasks that were freed by the reaper.
+	 * 
+	 * @param wanted The number of tasks to find
+	 * @param sweep Marked incomplete when the scan stops before it read every
+	 *              row of the bucket
+	 */
+	private List<TaskHandle> scan(String queueId, String taskType, UUID jobId, int wanted, long now,
+			Sweep sweep) throws ConnectionException {
+		List<TaskHandle> candidates = new ArrayList<>();
+		Set<UUID> seen = new HashSet<>();
+		
+		UUID cursor = this.cursors.get(queueId);
+		boolean wrapped = (cursor == null);
+		boolean done = false;
+		
+		for (int page = 0; !done && page < this.maxPages && candidates.size() < wanted; page++) {
+			List<QueueStore.TaskRow> rows = this.store.readPage(queueId, cursor, this.fetchSize);
+			Metrics.counter("queue.scan.pages").inc();
+			
+			for (QueueStore.TaskRow row : rows) {
+				UUID id = row.getId();
+				
+				if (!seen.add(id)) {
+					// wrapped around to rows that were already read
+					done = true;
+					break;
+				}
+				cursor = id;
+				
+				Boolean removed = row.getRemoved();
+				long leasedUntil = row.getLeasedUntil();
+				
+				// finished tasks keep their row until the marker expires. A 
+				// row without removed is what is left of a finished task 
+				// after the marker expired and is never leased.
+				if (!Boolean.FALSE.equals(removed) || leasedUntil >= now) {
+					continue;
+				}
+				
+				TaskHandle handle = new TaskHandle();
+				handle.setJobID(jobId);
+				handle.setId(id);
+				handle.setWorkerName(taskType);
+				
+				if (leasedUntil > 0) {
+					this.reaper.report(queueId, handle, leasedUntil);
+				} else {
+					candidates.add(handle);
 					
-					if (leased_until > 0 && leased_until < now) {
-						// HACK: check if it is a real expire
-						if (this.handleExpiredLease(handle)) {
-							handles.add(handle);
-						}
-					} else {
-						handles.add(handle);
+					// stop searching when we have enough tasks
+					if (candidates.size() == wanted) {
+						break;
 					}
 				}
 			}
 			
-			// stop searching when we reach the limit
-			if (handles.size() == limit) {
-				break;
+			if (!done && candidates.size() < wanted && rows.size() < this.fetchSize) {
+				// reached the end of the bucket
+				if (wrapped) {
+					done = true;
+				}
+				cursor = null;
+				wrapped = true;
 			}
 		}
 		
-		// build a batch query that "leases" the tasks
-		if (handles.size() > 0) {
-			for (TaskHandle handle : handles) {
-				PreparedCqlQuery<String, String> leaseTask = cs.prepareQuery(Entities.CF_STANDARD1).setConsistencyLevel(ConsistencyLevel.CL_QUORUM)
-						.withCql("UPDATE task_queue SET leased_until = ?, removed = false WHERE queue_id = ? AND id = ?")
-						.asPreparedStatement();
-				
-				result = leaseTask
-						.withLongValue(now + leaseSeconds)
-						.withStringValue(this.lockName(handle.getWorkerName(), handle.getJobID()))
-						.withUUIDValue(handle.getId())
-						.execute().getResult();
-			}
+		if (!done) {
+			sweep.complete = false;
 		}
 		
-		return handles;
+		if (cursor == null) {
+			this.cursors.remove(queueId);
+		} else {
+			this.cursors.put(queueId, cursor);
+		}
+		
+		return candidates;
+	}
+	
+	/**
+	 * Claim a task by setting its lease when the lease was not changed since
+	 * it was read and the task did not finish in the mean time. The finished
+	 * marker also resets the lease, so the lease alone does not tell a free 
+	 * task from a finished one.
+	 * 
+	 * @return True when this claim won
+	 */
+	private boolean claim(String queueId, TaskHandle handle, long expected, long leasedUntil) 
+			throws ConnectionException {
+		return this.store.claim(queueId, handle.getId(), expected, leasedUntil);
+	}
+	
+	/**
+	 * Extend the leases of running tasks. The leases are written in batches 
+	 * of at most RENEW_BATCH updates. A renewal does not touch the finished
+	 * marker, so a renewal that arrives after the task finished does not make
+	 * it leasable again. Once the marker expires such a renewal leaves a row
+	 * without removed, which is never leased.
+	 * 
+	 * @see QueueBackend#renewLeases(List, long, TimeUnit)
+	 */
+	@Override
+	public void renewLeases(List<Task> tasks, long lease, TimeUnit unit) throws ConnectionException {
+		TimerContext tc = Metrics.timer("queue.renew").time();
+		try {
+			long leasedUntil = System.currentTimeMillis() + unit.toMillis(lease);
+			
+			for (int start = 0; start < tasks.size(); start += RENEW_BATCH) {
+				Map<UUID, String> batch = new LinkedHashMap<>();
+				for (Task task : tasks.subList(start, Math.min(tasks.size(), start + RENEW_BATCH))) {
+					batch.put(task.getId(), this.queueId(task));
+				}
+				this.store.renew(batch, leasedUntil);
+			}
+		} finally {
+			tc.stop();
+		}
 	}
 
 	/**
 	 * Remove a task from the queue
 	 */
+	@Override
 	public void finishTask(Task task) {
 		TimerContext tc = Metrics.timer("queue.finish").time();
 		// TODO: ensure that we still have a lease here
 		logger.info("Removing task " + task.getId());
 		try {
-			PreparedCqlQuery<String, String> markDelete = cs.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("UPDATE task_queue SET removed = true WHERE queue_id = ? AND id = ?")
-					.asPreparedStatement();
-			
-			markDelete.withStringValue(this.lockName(task.getWorker(), task.getJobId()))
-					.withUUIDValue(task.getId())
-					.execute().getResult();
+			this.markFinished(this.queueId(task), task.getId());
+			this.updateDepth(task.getWorker(), task.getJobId(), 0, -1);
+		} catch (ConnectionException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			tc.stop();
+		}
+	}
+	
+	/**
+	 * Retry a task. A delayed retry is added to the delays before the attempt
+	 * is marked as finished, moving it into the bucket clears the marker. A 
+	 * retry without delay is a single write that frees the row of the 
+	 * attempt.
+	 * 
+	 * @see QueueBackend#retryTask(Task, long)
+	 */
+	@Override
+	public void retryTask(Task task, long visibleAfter) {
+		TimerContext tc = Metrics.timer("queue.retry").time();
+		logger.info("Retrying task " + task.getId());
+		try {
+			String queueId = this.queueId(task);
 			
-			PreparedCqlQuery<String, String> deleteTask = cs.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("DELETE FROM task_queue WHERE queue_id = ? AND id = ?")
-					.asPreparedStatement();
+			if (visibleAfter > System.currentTimeMillis()) {
+				this.store.addDelay(queueId, visibleAfter, task.getId());
+				this.markFinished(queueId, task.getId());
+			} else {
+				this.store.insertFree(queueId, task.getId());
+			}
+			this.updateDepth(task.getWorker(), task.getJobId(), 1, -1);
+			this.markActive(task.getWorker(), task.getJobId());
 			
-			deleteTask
-					.withStringValue(this.lockName(task.getWorker(), task.getJobId()))
-					.withUUIDValue(task.getId())
-					.execute().getResult();
 		} catch (ConnectionException e) {
 			throw new IllegalStateException(e);
 		} finally {
 			tc.stop();
 		}
 	}
+	
+	/**
+	 * Mark a task in the queue as finished with a single write. The whole row
+	 * is rewritten with a TTL, so the row expires finishedTtl seconds later 
+	 * without a separate delete. Marking a task twice has the same result.
+	 * 
+	 * Adding the task again, for example to retry it, overwrites the marker
+	 * without a TTL.
+	 */
+	private void markFinished(String queueId, UUID taskId) throws ConnectionException {
+		this.store.markFinished(queueId, taskId, this.finishedTtl);
+	}
 
+	/**
+	 * Move the delayed tasks of a bucket that are due into the bucket. The
+	 * delays of a bucket are read at most once every promoteInterval by a
+	 * node and only the rows that are due are read.
+	 * 
+	 * In lock mode the caller holds the lock on the bucket, so the due tasks
+	 * are moved with one batch. In cas mode each task is first added to the 
+	 * bucket and then removed from the delays with a conditional delete, so a
+	 * failure in between leaves the delay to be moved again. Adding the task
+	 * twice writes the same free row.
+	 */
+	private void promote(String queueId, long now) throws ConnectionException {
+		synchronized (this.promotions) {
+			Long next = this.promotions.get(queueId);
+			if (next != null && next > now) {
+				return;
+			}
+			this.promotions.put(queueId, now + this.promoteInterval);
+		}
+		
+		List<QueueStore.Delay> rows = this.store.readDue(queueId, now, this.fetchSize);
+		if (rows.isEmpty()) {
+			return;
+		}
+		
+		if (this.leaseMode == LeaseMode.CAS) {
+			for (QueueStore.Delay delay : rows) {
+				this.store.insertFree(queueId, delay.getId());
+				
+				if (!this.store.removeDelay(queueId, delay)) {
+					// another worker moved the same delay
+					Metrics.counter("queue.delay.conflict").inc();
+				}
+			}
+		} else {
+			this.store.promote(queueId, rows);
+		}
+		
+		Metrics.counter("queue.delay.promoted").inc(rows.size());
+	}
+	
 	/**
 	 * Add a task to the queue
 	 */
+	@Override
 	public void addTask(Task task) {
+		this.addTask(task, 0);
+	}
+	
+	/**
+	 * Add a task to the queue. A delayed task is stored in the delays of its
+	 * bucket, sorted on the time it becomes visible, and is moved into the 
+	 * bucket by the first lease on the bucket after it is due.
+	 * 
+	 * @see QueueBackend#addTask(Task, long)
+	 */
+	@Override
+	public void addTask(Task task, long visibleAfter) {
 		TimerContext tc = Metrics.timer("queue.addtask").time();
 		logger.info("Inserting task " + task.getId());
 		try {
-			PreparedCqlQuery<String, String> addTask = cs.prepareQuery(Entities.CF_STANDARD1).setConsistencyLevel(ConsistencyLevel.CL_QUORUM)
-					.withCql("INSERT INTO task_queue (queue_id, id, leased_until, removed) VALUES (?, ?, 0, false)")
-					.asPreparedStatement();
+			String queueId = this.queueId(task);
+			
+			if (visibleAfter > System.currentTimeMillis()) {
+				this.store.addDelay(queueId, visibleAfter, task.getId());
+			} else {
+				// a retry reuses the row of the finished attempt, this insert
+				// clears the finished marker and its TTL
+				this.store.insertFree(queueId, task.getId());
+			}
+			this.updateDepth(task.getWorker(), task.getJobId(), 1, 0);
+			this.markActive(task.getWorker(), task.getJobId());
 			
-			addTask
-					.withStringValue(this.lockName(task.getWorker(),  task.getJobId()))
-					.withUUIDValue(task.getId())
-					.execute().getResult();
+		} catch (ConnectionException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			tc.stop();
+		}
+	}
+	
+	/**
+	 * Add a task unless its bucket has a row for it, a finished task keeps 
+	 * its row until its marker expires. In cas mode this is a conditional 
+	 * insert, in lock mode the row is read and written under the lock on the
+	 * bucket.
+	 * 
+	 * @see QueueBackend#addTaskIfAbsent(Task)
+	 */
+	@Override
+	public void addTaskIfAbsent(Task task) {
+		TimerContext tc = Metrics.timer("queue.addtask").time();
+		try {
+			final String queueId = this.queueId(task);
+			final UUID taskId = task.getId();
+			Boolean added;
+			if (this.leaseMode == LeaseMode.CAS) {
+				added = this.store.insertFreeIfAbsent(queueId, taskId);
+			} else {
+				added = this.locked(queueId, null, new LockedOperation<Boolean>() {
+					@Override
+					public Boolean run() throws ConnectionException {
+						if (store.readTask(queueId, taskId) != null) {
+							return false;
+						}
+						store.insertFree(queueId, taskId);
+						return true;
+					}
+				});
+				if (added == null) {
+					throw new IllegalStateException("Unable to add task " + taskId + " to " + queueId);
+				}
+			}
 			
+			if (added) {
+				logger.info("Inserting task " + task.getId());
+				this.updateDepth(task.getWorker(), task.getJobId(), 1, 0);
+				this.markActive(task.getWorker(), task.getJobId());
+			}
 		} catch (ConnectionException e) {
 			throw new IllegalStateException(e);
 		} finally {
 			tc.stop();
 		}
 	}
+	
+	/**
+	 * Change the depth counters of a worker type and job
+	 */
+	private void updateDepth(String workerName, UUID jobId, long pending, long leased) {
+		this.store.updateDepth(workerName, jobId, pending, leased);
+	}
+	
+	/**
+	 * Read the depth of a worker type and job from its counters
+	 * 
+	 * @see QueueBackend#getDepth(String, UUID)
+	 */
+	@Override
+	public QueueDepth getDepth(String taskType, UUID jobId) throws ConnectionException {
+		return this.store.readDepth(taskType, jobId);
+	}
+	
+	/**
+	 * Read the depth of all jobs of a worker type. The counters of a worker
+	 * type are stored in a single partition.
+	 * 
+	 * @see QueueBackend#getDepth(String)
+	 */
+	@Override
+	public QueueDepth getDepth(String taskType) throws ConnectionException {
+		return this.store.readDepth(taskType);
+	}
+
+	@Override
+	public void jobStarted(Job job) {
+	}
+
+	/**
+	 * A finished job has no tasks left, drop the depth counters of the job
+	 * for all configured worker types.
+	 */
+	@Override
+	public void jobFinished(Job job) {
+		this.active.removeJob(job.getJobId());
+		
+		Map<String, WorkerConfig> workers = Config.getConfig().getWorkers();
+		if (workers == null) {
+			return;
+		}
+		
+		for (String workerName : workers.keySet()) {
+			try {
+				this.store.removeJob(workerName, job.getJobId());
+			} catch (ConnectionException e) {
+				logger.log(Level.WARNING, "Unable to remove the queue depth and active queue of job " + job.getJobId(), e);
+			}
+		}
+	}
 
 }
@@ -0,0 +1,120 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.queue;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+import drm.taskworker.tasks.Task;
+
+/**
+ * The interface of a task queue. A task queue contains a queue of tasks for
+ * each combination of worker type and job.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public interface QueueBackend {
+	/**
+	 * Lease tasks from the queue. A leased task is not handed out again until
+	 * the lease expires or the task is finished.
+	 * 
+	 * @param lease
+	 *            How long is the task leased
+	 * @param unit
+	 *            The timeunit of the lease time
+	 * @param limit
+	 *            How many task are to be leased
+	 * @param taskType
+	 *            The type of task (the name / type of the worker)
+	 * @param jobId
+	 *            The job the task belongs to
+	 * @return A list of taskhandles
+	 * @throws ConnectionException
+	 */
+	public List<TaskHandle> leaseTasks(long lease, TimeUnit unit, int limit, 
+			String taskType, UUID jobId) throws ConnectionException;
+	
+	/**
+	 * Extend the lease of tasks that are still being worked on. The new lease
+	 * starts now. Tasks that are finished are ignored.
+	 * 
+	 * @param tasks
+	 *            The leased tasks
+	 * @param lease
+	 *            How long the tasks are leased from now on
+	 * @param unit
+	 *            The timeunit of the lease time
+	 * @throws ConnectionException
+	 */
+	public void renewLeases(List<Task> tasks, long lease, TimeUnit unit) throws ConnectionException;
+	
+	/**
+	 * Add a task to the queue
+	 */
+	public void addTask(Task task);
+	
+	/**
+	 * Add a task to the queue that is not leased before the given time. A 
+	 * delayed task counts as pending.
+	 * 
+	 * @param visibleAfter
+	 *            The time in milliseconds since the epoch after which the 
+	 *            task can be leased
+	 */
+	public void addTask(Task task, long visibleAfter);
+	
+	/**
+	 * Add a task to the queue unless it is already in the queue, also when 
+	 * it is leased or finished. Adding the tasks of a split again after a 
+	 * failure then does not execute a task twice.
+	 */
+	public void addTaskIfAbsent(Task task);
+	
+	/**
+	 * Remove a task from the queue
+	 */
+	public void finishTask(Task task);
+	
+	/**
+	 * Replace the leased attempt of a task with a new attempt that is not 
+	 * leased before the given time. The new attempt is stored before the 
+	 * leased one is removed, so a failure in between does not lose the task.
+	 * 
+	 * @param visibleAfter
+	 *            The time in milliseconds since the epoch after which the 
+	 *            new attempt can be leased
+	 */
+	public void retryTask(Task task, long visibleAfter);
+	
+	/**
+	 * Get the number of tasks in the queue of a worker type and job. The 
+	 * depth is kept up to date by the queue operations, so it does not 
+	 * require a scan of the queue.
+	 */
+	public QueueDepth getDepth(String taskType, UUID jobId) throws ConnectionException;
+	
+	/**
+	 * Get the number of tasks in the queues of a worker type over all jobs
+	 */
+	public QueueDepth getDepth(String taskType) throws ConnectionException;
+}
@@ -0,0 +1,71 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.queue;
+
+/**
+ * The number of tasks in a queue. Pending tasks wait to be leased, leased 
+ * tasks are handed out to a worker and not finished yet. The in-flight tasks
+ * are all tasks that were added and did not finish.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public class QueueDepth {
+	private final long pending;
+	private final long leased;
+	
+	public QueueDepth(long pending, long leased) {
+		this.pending = pending;
+		this.leased = leased;
+	}
+	
+	/**
+	 * The number of tasks that wait to be leased
+	 */
+	public long getPending() {
+		return this.pending;
+	}
+	
+	/**
+	 * The number of tasks that are leased
+	 */
+	public long getLeased() {
+		return this.leased;
+	}
+	
+	/**
+	 * The number of tasks that are pending or leased
+	 */
+	public long getInFlight() {
+		return this.pending + this.leased;
+	}
+	
+	/**
+	 * The sum of this depth and the given depth
+	 */
+	public QueueDepth add(QueueDepth other) {
+		return new QueueDepth(this.pending + other.pending, this.leased + other.leased);
+	}
+	
+	@Override
+	public String toString() {
+		return "QueueDepth(pending=" + this.pending + ", leased=" + this.leased + ")";
+	}
+}
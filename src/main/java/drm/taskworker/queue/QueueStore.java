@@ -0,0 +1,231 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+
+package drm.taskworker.queue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+/**
+ * The tables of the cassandra queue. The queue decides which rows to read 
+ * and write, a store executes the reads and writes. Each method is one 
+ * statement or one batch, so a store keeps the atomicity of the writes the 
+ * queue relies on.
+ * 
+ * @author Bart Vanbrabant <bart.vanbrabant@cs.kuleuven.be>
+ */
+public interface QueueStore {
+	/**
+	 * A row of a bucket of the task_queue table
+	 */
+	public static class TaskRow {
+		private UUID id;
+		private long leasedUntil;
+		private Boolean removed;
+		
+		public TaskRow(UUID id, long leasedUntil, Boolean removed) {
+			this.id = id;
+			this.leasedUntil = leasedUntil;
+			this.removed = removed;
+		}
+		
+		public UUID getId() {
+			return this.id;
+		}
+		
+		/**
+		 * The end of the lease in milliseconds since the epoch, 0 when free
+		 */
+		public long getLeasedUntil() {
+			return this.leasedUntil;
+		}
+		
+		/**
+		 * The finished marker: false for a queued task, true for a finished 
+		 * task and null for what is left of a row after the marker expired
+		 */
+		public Boolean getRemoved() {
+			return this.removed;
+		}
+	}
+	
+	/**
+	 * A row of the task_delay table
+	 */
+	public static class Delay {
+		private long visibleAfter;
+		private UUID id;
+		
+		public Delay(long visibleAfter, UUID id) {
+			this.visibleAfter = visibleAfter;
+			this.id = id;
+		}
+		
+		public long getVisibleAfter() {
+			return this.visibleAfter;
+		}
+		
+		public UUID getId() {
+			return this.id;
+		}
+	}
+	
+	/**
+	 * A distributed lock that is held
+	 */
+	public interface Lock {
+		/**
+		 * Release the lock
+		 * 
+		 * @return False when the lock could not be released
+		 */
+		public boolean release();
+	}
+	
+	/**
+	 * Read a page of a bucket in the order of the task ids
+	 * 
+	 * @param after The id after which the page starts or null to start at 
+	 * 			the beginning of the bucket
+	 */
+	public List<TaskRow> readPage(String queueId, UUID after, int limit) throws ConnectionException;
+	
+	/**
+	 * Read a task of a bucket
+	 * 
+	 * @return The row or null when the bucket has no row for the task
+	 */
+	public TaskRow readTask(String queueId, UUID id) throws ConnectionException;
+	
+	/**
+	 * Set the lease of tasks of a bucket in one batch, without touching their
+	 * finished marker
+	 */
+	public void lease(String queueId, List<UUID> ids, long leasedUntil) throws ConnectionException;
+	
+	/**
+	 * Set the lease of a task when its lease is the expected lease and the 
+	 * task is not finished
+	 * 
+	 * @return True when the lease was set
+	 */
+	public boolean claim(String queueId, UUID id, long expected, long leasedUntil) throws ConnectionException;
+	
+	/**
+	 * Extend the leases of tasks in one batch. The leases do not expire, a 
+	 * lease column that disappears would never match a conditional claim.
+	 * 
+	 * @param tasks The bucket of each task
+	 */
+	public void renew(Map<UUID, String> tasks, long leasedUntil) throws ConnectionException;
+	
+	/**
+	 * Make a task free again without touching its finished marker
+	 */
+	public void resetLease(String queueId, UUID id) throws ConnectionException;
+	
+	/**
+	 * Write a free row for a task, which clears a finished marker and its TTL
+	 */
+	public void insertFree(String queueId, UUID id) throws ConnectionException;
+	
+	/**
+	 * Write a free row for a task unless the bucket has a row for it. This is
+	 * a conditional write, which is only used in cas mode.
+	 * 
+	 * @return True when the row was written
+	 */
+	public boolean insertFreeIfAbsent(String queueId, UUID id) throws ConnectionException;
+	
+	/**
+	 * Rewrite the row of a task as finished. The row expires after ttl 
+	 * seconds.
+	 */
+	public void markFinished(String queueId, UUID id, int ttl) throws ConnectionException;
+	
+	/**
+	 * Add a task to the delays of a bucket
+	 */
+	public void addDelay(String queueId, long visibleAfter, UUID id) throws ConnectionException;
+	
+	/**
+	 * Read the delays of a bucket that are due, the earliest first
+	 */
+	public List<Delay> readDue(String queueId, long now, int limit) throws ConnectionException;
+	
+	/**
+	 * Remove a delay when it still exists
+	 * 
+	 * @return True when this call removed it
+	 */
+	public boolean removeDelay(String queueId, Delay delay) throws ConnectionException;
+	
+	/**
+	 * Move delays into their bucket as free tasks in one batch
+	 */
+	public void promote(String queueId, List<Delay> delays) throws ConnectionException;
+	
+	/**
+	 * Does a task have a timing entry, which is written when it finished
+	 */
+	public boolean hasTiming(UUID id) throws ConnectionException;
+	
+	/**
+	 * Read the jobs with queued tasks of a worker type
+	 */
+	public List<UUID> readActive(String workerType) throws ConnectionException;
+	
+	/**
+	 * Mark the queue of a worker type and job as having queued tasks
+	 */
+	public void addActive(String workerType, UUID jobId) throws ConnectionException;
+	
+	/**
+	 * Change the depth counters of a worker type and job. The counters are
+	 * only used to monitor and schedule, so the change may be written 
+	 * without waiting for it and a failed change is only logged.
+	 */
+	public void updateDepth(String workerType, UUID jobId, long pending, long leased);
+	
+	/**
+	 * Read the depth counters of a worker type and job
+	 */
+	public QueueDepth readDepth(String workerType, UUID jobId) throws ConnectionException;
+	
+	/**
+	 * Read the sum of the depth counters of all jobs of a worker type
+	 */
+	public QueueDepth readDepth(String workerType) throws ConnectionException;
+	
+	/**
+	 * Remove the depth counters and the active mark of a worker type and job
+	 */
+	public void removeJob(String workerType, UUID jobId) throws ConnectionException;
+	
+	/**
+	 * Acquire the distributed lock with the given name
+	 * 
+	 * @return The held lock or null when it could not be acquired
+	 */
+	public Lock lock(String name);
+}
@@ -21,6 +21,8 @@ package drm.taskworker.queue;
 
 import java.util.UUID;
 
+import drm.taskworker.tasks.Priority;
+
 /**
  * A task handle
  *
@@ -69,9 +71,24 @@ public class TaskHandle {
 		this.workerName = workerName;
 	}
 
+	/**
+	 * @return the priority lane the task is stored in
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @param priority the priority lane the task is stored in
+	 */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
 	private UUID jobId;
 	private UUID id;
 	private String workerName;
+	private Priority priority = Priority.NORMAL;
 	
 	public TaskHandle() {
 	}
@@ -0,0 +1,66 @@
+/*
+    Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+    Administrative Contact: dnet-project-office@cs.kuleuven.be
+    Technical Contact: bart.vanbrabant@cs.kuleuven.be
+*/
+
+package drm.taskworker.rest;
+
+import java.util.UUID;
+
+import javax.json.Json;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import drm.taskworker.Service;
+import drm.taskworker.queue.QueueDepth;
+
+@Path("/queue")
+public class Queues {
+    /**
+     * The depth of the queues of a worker type over all jobs
+     */
+    @GET
+    @Path("{worker}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getDepth(@PathParam("worker")String worker) {
+        return toJson(worker, Service.get().getQueueDepth(worker), Service.get().getDeadLetterDepth(worker));
+    }
+    
+    /**
+     * The depth of the queue of a worker type and job
+     */
+    @GET
+    @Path("{worker}/{job}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getDepth(@PathParam("worker")String worker, @PathParam("job")String jobId) {
+        UUID job = UUID.fromString(jobId);
+        return toJson(worker, Service.get().getQueueDepth(worker, job), Service.get().getDeadLetterDepth(worker, job));
+    }
+    
+    private static String toJson(String worker, QueueDepth depth, long deadLetters) {
+        return Json.createObjectBuilder()
+                .add("worker", worker)
+                .add("pending", depth.getPending())
+                .add("leased", depth.getLeased())
+                .add("in_flight", depth.getInFlight())
+                .add("dead_letter", deadLetters)
+                .build().toString();
+    }
+}
@@ -19,8 +19,6 @@
 
 package drm.taskworker.tasks;
 
-import static drm.taskworker.Entities.cs;
-
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -30,17 +28,17 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Logger;
 
-import com.netflix.astyanax.Keyspace;
 import com.netflix.astyanax.connectionpool.OperationResult;
 import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
 import com.netflix.astyanax.model.ColumnList;
 import com.netflix.astyanax.model.CqlResult;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.query.PreparedCqlQuery;
 import com.netflix.astyanax.serializers.ObjectSerializer;
 
-import drm.taskworker.Entities;
 import drm.taskworker.Job;
+import drm.taskworker.Statements;
 
 /**
  * A baseclass for all tasks.
@@ -60,6 +58,8 @@ public class Task {
 	private Date finishedAt = null;
 
 	private UUID jobId = null;
+	private Priority priority = Priority.NORMAL;
+	private int attempts = 0;
 
 	// WARNING: this list is only saved to the database and not yet loaded from it!
 	private List<UUID> parentIds = new LinkedList<>();
@@ -139,6 +139,17 @@ public class Task {
 	public UUID getId() {
 		return this.taskId;
 	}
+	
+	/**
+	 * Change the id of a task that is not stored yet, its parameters move
+	 * along with it.
+	 */
+	public void setId(UUID taskId) {
+		this.taskId = taskId;
+		for (ValueRef ref : this.params.values()) {
+			ref.setTaskId(taskId);
+		}
+	}
 
 	/**
 	 * Get the name of the work to send the task to.
@@ -149,6 +160,38 @@ public class Task {
 		return this.worker;
 	}
 
+	/**
+	 * Get the priority of this task in the queue
+	 */
+	public Priority getPriority() {
+		return this.priority;
+	}
+	
+	/**
+	 * Set the priority of this task in the queue. The priority is only used
+	 * when the task is queued after it is set.
+	 */
+	public void setPriority(Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException("A task requires a priority");
+		}
+		this.priority = priority;
+	}
+
+	/**
+	 * Get the number of times this task failed
+	 */
+	public int getAttempts() {
+		return this.attempts;
+	}
+	
+	/**
+	 * Set the number of times this task failed
+	 */
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
 	/**
 	 * Get the workflow this task belongs to.
 	 */
@@ -230,29 +273,44 @@ public class Task {
 		 * job_id uuid )
 		 */
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql("INSERT INTO task (id, created_at, worker_name, job_id) "
-									+ " VALUES (?, ?, ?, ?);")
-					.asPreparedStatement().withUUIDValue(this.getId()) // id
-					.withLongValue(this.createdAt.getTime()) // created_at
-					.withStringValue(this.getWorker()) // worker_name
-					.withUUIDValue(this.getJobId()) // job_id
-					.execute();
-
-			// now save the list of parents
-			for (UUID parentId : this.parentIds) {
-				saveParent(this.getJobId(), this.getId(), parentId);
-			}
-			
-			// save all value refs that have not been saved
-			for (ValueRef ref : params.values()) {
-				ref.save();
+			for (PreparedCqlQuery<String, String> query : this.saveQueries()) {
+				query.execute();
 			}
 		} catch (ConnectionException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * The writes that save this task: the task itself, its parents and all
+	 * its parameters. The writes are independent of each other, so they can
+	 * be sent without waiting for the previous one.
+	 */
+	public List<PreparedCqlQuery<String, String>> saveQueries() {
+		List<PreparedCqlQuery<String, String>> queries = new LinkedList<>();
+		
+		queries.add(Statements.prepare("INSERT INTO task (id, created_at, worker_name, job_id, priority, attempts) "
+								+ " VALUES (?, ?, ?, ?, ?, ?);")
+				.withUUIDValue(this.getId()) // id
+				.withLongValue(this.createdAt.getTime()) // created_at
+				.withStringValue(this.getWorker()) // worker_name
+				.withUUIDValue(this.getJobId()) // job_id
+				.withStringValue(this.priority.name()) // priority
+				.withIntegerValue(this.attempts)); // attempts
+
+		// now save the list of parents
+		for (UUID parentId : this.parentIds) {
+			queries.add(parentQuery(this.getJobId(), this.getId(), parentId));
+		}
+		
+		// save all value refs that have not been saved
+		for (ValueRef ref : params.values()) {
+			queries.add(ref.saveQuery());
+		}
+		
+		return queries;
+	}
+	
 	/**
 	 * workaround for saving params if some work has been done in RAM
 	 * @throws ParameterFoundException 
@@ -266,17 +324,18 @@ public class Task {
 
 	public static void saveParent(UUID jobId, UUID taskId, UUID parentId) {
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-					.withCql(
-							"INSERT INTO task_parent (id, job_id, parent_id) VALUES (?, ?, ?);")
-					.asPreparedStatement().withUUIDValue(taskId) // id
-					.withUUIDValue(jobId) // job_id
-					.withUUIDValue(parentId) // parent_id
-					.execute();
+			parentQuery(jobId, taskId, parentId).execute();
 		} catch (ConnectionException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	private static PreparedCqlQuery<String, String> parentQuery(UUID jobId, UUID taskId, UUID parentId) {
+		return Statements.prepare("INSERT INTO task_parent (id, job_id, parent_id) VALUES (?, ?, ?);")
+				.withUUIDValue(taskId) // id
+				.withUUIDValue(jobId) // job_id
+				.withUUIDValue(parentId); // parent_id
+	}
 
 	/**
 	 * Is this task finished?
@@ -296,10 +355,8 @@ public class Task {
 			throw new IllegalArgumentException("Task id is null");
 		}
 		try {
-			OperationResult<CqlResult<	String, String>> result = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT * FROM task WHERE job_id = ? AND id = ?;")
-					.asPreparedStatement().withUUIDValue(jobId)
+			OperationResult<CqlResult<	String, String>> result = Statements.prepare("SELECT * FROM task WHERE job_id = ? AND id = ?;")
+					.withUUIDValue(jobId)
 					.withUUIDValue(id).execute();
 
 			for (Row<String, String> row : result.getResult().getRows()) {
@@ -319,6 +376,13 @@ public class Task {
 		task.createdAt = new Date(columns.getLongValue("created_at", 0L));
 		task.setJobId(columns.getUUIDValue("job_id", null));
 		task.worker = columns.getStringValue("worker_name", null);
+		
+		task.attempts = columns.getIntegerValue("attempts", 0);
+		
+		String priority = columns.getStringValue("priority", null);
+		if (priority != null) {
+			task.priority = Priority.valueOf(priority);
+		}
 
 		return task;
 	}
@@ -328,10 +392,7 @@ public class Task {
 	 */
 	private void loadTiming() {
 		try {
-			OperationResult<CqlResult<	String, String>> result = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT * FROM task_timing WHERE id = ?;")
-					.asPreparedStatement()
+			OperationResult<CqlResult<	String, String>> result = Statements.prepare("SELECT * FROM task_timing WHERE id = ?;")
 					.withUUIDValue(this.getId())
 					.execute();
 
@@ -355,20 +416,44 @@ public class Task {
 	 */
 	public void saveTiming() {
 		try {
-			Keyspace cs = cs();
-			cs.prepareQuery(Entities.CF_STANDARD1)
-					.withCql(
-							"INSERT INTO task_timing (id, started_at, finished_at) VALUES (?, ?, ?)")
-					.asPreparedStatement()
-					.withUUIDValue(this.getId()) // id
-					.withLongValue(this.startedAt.getTime()) // started_at
-					.withLongValue(this.finishedAt.getTime()) // finished_at
-					.execute();
+			this.saveTimingQuery().execute();
 			
 		} catch (ConnectionException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * The write that saves the timing of this task
+	 */
+	public PreparedCqlQuery<String, String> saveTimingQuery() {
+		return Statements.prepare("INSERT INTO task_timing (id, started_at, finished_at) VALUES (?, ?, ?)")
+				.withUUIDValue(this.getId()) // id
+				.withLongValue(this.startedAt.getTime()) // started_at
+				.withLongValue(this.finishedAt.getTime()); // finished_at
+	}
+	
+	/**
+	 * Save the number of attempts and remove the timing of the failed 
+	 * attempt, so the queue does not consider the task finished when the 
+	 * lease of its retry expires.
+	 */
+	public void saveRetry() {
+		try {
+			Statements.prepare("UPDATE task SET attempts = ? WHERE job_id = ? AND id = ?")
+					.withIntegerValue(this.attempts)
+					.withUUIDValue(this.getJobId())
+					.withUUIDValue(this.getId())
+					.execute();
+			
+			Statements.prepare("DELETE FROM task_timing WHERE id = ?")
+					.withUUIDValue(this.getId())
+					.execute();
+		} catch (ConnectionException e) {
+			// a stale timing would mark the retry as finished
+			throw new IllegalStateException(e);
+		}
+	}
 
 	/**
 	 * @return the workflowId
@@ -421,10 +506,7 @@ public class Task {
 		try {
 			Rows<String, String> rows;
 
-			rows = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT parent_id FROM task_parent WHERE job_id=? and id = ?;")
-					.asPreparedStatement()
+			rows = Statements.prepare("SELECT parent_id FROM task_parent WHERE job_id=? and id = ?;")
 					.withUUIDValue(this.jobId)
 					.withUUIDValue(this.getId())
 					.execute().getResult().getRows();
@@ -493,10 +575,7 @@ public class Task {
 	 */
 	public void loadParamRefs() {
 		try {
-			OperationResult<CqlResult<String, String>> result = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT * FROM parameter WHERE job_id = ? AND task_id = ?")
-					.asPreparedStatement()
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT * FROM parameter WHERE job_id = ? AND task_id = ?")
 					.withUUIDValue(this.getJobId())
 					.withUUIDValue(this.getId())
 					.execute();
@@ -19,8 +19,6 @@
 
 package drm.taskworker.tasks;
 
-import static drm.taskworker.Entities.cs;
-
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,9 +31,10 @@ import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
 import com.netflix.astyanax.model.ColumnList;
 import com.netflix.astyanax.model.CqlResult;
 import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.query.PreparedCqlQuery;
 import com.netflix.astyanax.serializers.ObjectSerializer;
 
-import drm.taskworker.Entities;
+import drm.taskworker.Statements;
 
 /**
  * A reference to a value in the store 
@@ -63,6 +62,13 @@ public class ValueRef implements Serializable {
 		return taskId;
 	}
 	
+	/**
+	 * Move the value to the task with the given id
+	 */
+	void setTaskId(UUID taskId) {
+		this.taskId = taskId;
+	}
+	
 	public UUID getJobId() {
 		return jobId;
 	}
@@ -91,28 +97,29 @@ public class ValueRef implements Serializable {
 	 */
 	public void save() {
 		try {
-			cs().prepareQuery(Entities.CF_STANDARD1)
-				.withCql("INSERT INTO parameter (job_id, task_id, name, value) VALUES (?, ?, ?, ?);")
-				.asPreparedStatement()
-				.withUUIDValue(this.getJobId())
-				.withUUIDValue(this.getTaskId())
-				.withStringValue(this.getKeyName())
-				.withByteBufferValue(this.value, ObjectSerializer.get())
-				.execute();
+			this.saveQuery().execute();
 		} catch (ConnectionException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * The query that saves the value, so it can be sent with other writes
+	 */
+	public PreparedCqlQuery<String, String> saveQuery() {
+		return Statements.prepare("INSERT INTO parameter (job_id, task_id, name, value) VALUES (?, ?, ?, ?);")
+			.withUUIDValue(this.getJobId())
+			.withUUIDValue(this.getTaskId())
+			.withStringValue(this.getKeyName())
+			.withByteBufferValue(this.value, ObjectSerializer.get());
+	}
 
 	/**
 	 * Load the parameters of this task from the database
 	 */
 	private void loadValue() {
 		try {
-			OperationResult<CqlResult<String, String>> result = cs()
-					.prepareQuery(Entities.CF_STANDARD1)
-					.withCql("SELECT value FROM parameter WHERE job_id = ? AND task_id = ? AND name = ?")
-					.asPreparedStatement()
+			OperationResult<CqlResult<String, String>> result = Statements.prepare("SELECT value FROM parameter WHERE job_id = ? AND task_id = ? AND name = ?")
 					.withUUIDValue(this.getJobId())
 					.withUUIDValue(this.getTaskId())
 					.withStringValue(this.keyName)
@@ -0,0 +1,145 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+import drm.taskworker.tasks.TaskResult.Result;
+
+public class AsyncWorkerTest {
+	/**
+	 * An async worker of which the test completes the futures. It records 
+	 * the results it completes.
+	 */
+	private static class TestWorker extends AsyncWorker {
+		private LinkedBlockingQueue<SettableFuture<TaskResult>> started = new LinkedBlockingQueue<>();
+		private LinkedBlockingQueue<TaskResult> completed = new LinkedBlockingQueue<>();
+		private List<Task> completedTasks = new CopyOnWriteArrayList<>();
+		private boolean throwing = false;
+		
+		public TestWorker() {
+			super("async");
+		}
+
+		@Override
+		public ListenableFuture<TaskResult> workAsync(Task task) {
+			if (this.throwing) {
+				throw new IllegalStateException("work failed to start");
+			}
+			SettableFuture<TaskResult> future = SettableFuture.create();
+			this.started.add(future);
+			return future;
+		}
+		
+		@Override
+		void complete(Task task, TaskResult result) {
+			this.completedTasks.add(task);
+			this.completed.add(result);
+		}
+	}
+	
+	private static List<Task> tasks(int count) {
+		List<Task> tasks = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			tasks.add(new Task(UUID.randomUUID(), UUID.randomUUID(), "async"));
+		}
+		return tasks;
+	}
+	
+	@Test
+	public void testInFlightLimit() throws InterruptedException {
+		final TestWorker worker = new TestWorker();
+		worker.setInFlight(2);
+		final List<Task> tasks = tasks(3);
+		
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				worker.process(tasks, null);
+			}
+		};
+		thread.start();
+		
+		// the third task waits until one of the first two completes
+		SettableFuture<TaskResult> first = worker.started.poll(5, TimeUnit.SECONDS);
+		assertNotNull(worker.started.poll(5, TimeUnit.SECONDS));
+		assertNull(worker.started.poll(100, TimeUnit.MILLISECONDS));
+		assertTrue(thread.isAlive());
+		
+		first.set(new TaskResult().setResult(Result.SUCCESS));
+		assertNotNull(worker.started.poll(5, TimeUnit.SECONDS));
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+	}
+	
+	@Test
+	public void testCompletion() throws InterruptedException {
+		TestWorker worker = new TestWorker();
+		List<Task> tasks = tasks(2);
+		
+		// process returns once the tasks are started
+		worker.process(tasks, null);
+		assertEquals(2, worker.started.size());
+		assertTrue(worker.completed.isEmpty());
+		
+		worker.started.take().set(new TaskResult().setResult(Result.SUCCESS));
+		TaskResult result = worker.completed.poll(5, TimeUnit.SECONDS);
+		assertEquals(Result.SUCCESS, result.getResult());
+		assertSame(tasks.get(0), worker.completedTasks.get(0));
+		
+		worker.started.take().setException(new IllegalArgumentException("work failed"));
+		result = worker.completed.poll(5, TimeUnit.SECONDS);
+		assertEquals(Result.EXCEPTION, result.getResult());
+		assertTrue(result.getException() instanceof IllegalArgumentException);
+		assertSame(tasks.get(1), worker.completedTasks.get(1));
+	}
+	
+	@Test
+	public void testWorkThrows() throws InterruptedException {
+		TestWorker worker = new TestWorker();
+		worker.setInFlight(1);
+		worker.throwing = true;
+		
+		worker.process(tasks(1), null);
+		TaskResult result = worker.completed.poll(5, TimeUnit.SECONDS);
+		assertEquals(Result.EXCEPTION, result.getResult());
+		assertTrue(result.getException() instanceof IllegalStateException);
+		
+		// the failed start gave back its place
+		worker.throwing = false;
+		worker.process(tasks(1), null);
+		assertEquals(1, worker.started.size());
+	}
+}
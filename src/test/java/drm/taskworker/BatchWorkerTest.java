@@ -0,0 +1,163 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import drm.taskworker.config.BackoffIdleStrategy;
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+import drm.taskworker.tasks.TaskResult.Result;
+
+public class BatchWorkerTest {
+	/**
+	 * A dispatcher that hands out the tasks the test puts in it and does not
+	 * lease anything
+	 */
+	private static class TestDispatcher extends Dispatcher {
+		private LinkedBlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+		
+		public TestDispatcher() {
+			super(null, "batch", 10, TimeUnit.SECONDS, 100, 1, 1000, new BackoffIdleStrategy());
+		}
+		
+		@Override
+		public void run() {
+		}
+		
+		@Override
+		public Task take(long timeout, TimeUnit unit) throws InterruptedException {
+			return this.tasks.poll(timeout, unit);
+		}
+	}
+	
+	/**
+	 * A batch worker that returns the given number of results per batch and
+	 * records the results it commits
+	 */
+	private static class TestWorker extends BatchWorker {
+		private int results = -1;
+		private List<TaskResult> committed = new ArrayList<>();
+		
+		public TestWorker() {
+			super("batch");
+		}
+		
+		@Override
+		public List<TaskResult> work(List<Task> tasks) {
+			int count = (this.results < 0) ? tasks.size() : this.results;
+			List<TaskResult> results = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				results.add(new TaskResult().setResult(Result.SUCCESS));
+			}
+			return results;
+		}
+		
+		@Override
+		void commit(Task task, TaskResult result) {
+			this.committed.add(result);
+		}
+	}
+	
+	private static Task task() {
+		return new Task(UUID.randomUUID(), UUID.randomUUID(), "batch");
+	}
+	
+	@Test
+	public void testFullBatch() throws InterruptedException {
+		TestDispatcher dispatcher = new TestDispatcher();
+		TestWorker worker = new TestWorker();
+		worker.setLeaseBatch(3);
+		worker.setBatchWait(10000);
+		
+		for (int i = 0; i < 5; i++) {
+			dispatcher.tasks.add(task());
+		}
+		
+		// a full batch does not wait
+		long start = System.currentTimeMillis();
+		assertEquals(3, worker.take(dispatcher, 1, TimeUnit.SECONDS).size());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(2, dispatcher.tasks.size());
+	}
+	
+	@Test
+	public void testBatchWaitExpires() throws InterruptedException {
+		TestDispatcher dispatcher = new TestDispatcher();
+		TestWorker worker = new TestWorker();
+		worker.setLeaseBatch(10);
+		worker.setBatchWait(100);
+		
+		// nothing to take within the timeout
+		assertTrue(worker.take(dispatcher, 10, TimeUnit.MILLISECONDS).isEmpty());
+		
+		dispatcher.tasks.add(task());
+		dispatcher.tasks.add(task());
+		
+		// a partial batch is returned when the batch wait expires
+		long start = System.currentTimeMillis();
+		assertEquals(2, worker.take(dispatcher, 1, TimeUnit.SECONDS).size());
+		long waited = System.currentTimeMillis() - start;
+		assertTrue(waited >= 90);
+		assertTrue(waited < 5000);
+	}
+	
+	@Test
+	public void testProcess() {
+		TestWorker worker = new TestWorker();
+		List<Task> tasks = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			tasks.add(task());
+		}
+		
+		worker.process(tasks, null);
+		assertEquals(3, worker.committed.size());
+		for (TaskResult result : worker.committed) {
+			assertEquals(Result.SUCCESS, result.getResult());
+		}
+	}
+	
+	@Test
+	public void testResultCountMismatch() {
+		TestWorker worker = new TestWorker();
+		worker.results = 2;
+		List<Task> tasks = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			tasks.add(task());
+		}
+		
+		// every task of the batch fails, none of them is lost
+		worker.process(tasks, null);
+		assertEquals(3, worker.committed.size());
+		for (TaskResult result : worker.committed) {
+			assertEquals(Result.EXCEPTION, result.getResult());
+			assertTrue(result.getException() instanceof IllegalStateException);
+		}
+	}
+}
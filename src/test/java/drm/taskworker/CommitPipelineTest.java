@@ -0,0 +1,92 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+
+public class CommitPipelineTest {
+	/**
+	 * Records the tasks it completes, after the latch opens
+	 */
+	private static class RecordingWorker extends Worker {
+		private List<Task> completed = new CopyOnWriteArrayList<>();
+		private CountDownLatch open = new CountDownLatch(1);
+		
+		public RecordingWorker() {
+			super("test");
+		}
+
+		@Override
+		public TaskResult work(Task task) {
+			return null;
+		}
+		
+		@Override
+		void complete(Task task, TaskResult result) {
+			try {
+				this.open.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.completed.add(task);
+		}
+	}
+	
+	@Test
+	public void testCommitsAllPending() throws InterruptedException {
+		final RecordingWorker worker = new RecordingWorker();
+		final CommitPipeline commits = new CommitPipeline(2, 2);
+		final UUID jobId = UUID.randomUUID();
+		
+		// the third result waits for a free place in the pipeline
+		commits.submit(worker, new Task(jobId, UUID.randomUUID(), "test"), null);
+		commits.submit(worker, new Task(jobId, UUID.randomUUID(), "test"), null);
+		
+		final CountDownLatch submitted = new CountDownLatch(1);
+		new Thread() {
+			@Override
+			public void run() {
+				commits.submit(worker, new Task(jobId, UUID.randomUUID(), "test"), null);
+				submitted.countDown();
+			}
+		}.start();
+		
+		assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+		assertTrue(worker.completed.isEmpty());
+		
+		worker.open.countDown();
+		assertTrue(submitted.await(1, TimeUnit.SECONDS));
+		
+		commits.stop();
+		assertEquals(3, worker.completed.size());
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DispatcherTest {
+	private static final long LEASE = TimeUnit.SECONDS.toNanos(10);
+
+	@Test
+	public void testPrefetch() {
+		// one task per thread until the duration is known
+		assertEquals(4, Dispatcher.prefetch(4, 1, LEASE, 0, 100));
+		
+		// nothing is leased without threads to take it
+		assertEquals(0, Dispatcher.prefetch(0, 1, LEASE, 0, 100));
+		assertEquals(0, Dispatcher.prefetch(0, 1, LEASE, TimeUnit.SECONDS.toNanos(1), 100));
+		
+		// short tasks fill the buffer up to the maximum
+		assertEquals(100, Dispatcher.prefetch(4, 1, LEASE, TimeUnit.MILLISECONDS.toNanos(1), 100));
+		
+		// 4 threads with 1s tasks finish 20 tasks in half a lease
+		assertEquals(20, Dispatcher.prefetch(4, 1, LEASE, TimeUnit.SECONDS.toNanos(1), 100));
+		
+		// long tasks still get one task per thread
+		assertEquals(4, Dispatcher.prefetch(4, 1, LEASE, TimeUnit.SECONDS.toNanos(60), 100));
+		assertEquals(2, Dispatcher.prefetch(4, 1, LEASE, TimeUnit.SECONDS.toNanos(60), 2));
+		
+		// every thread of a batch worker gets a full batch
+		assertEquals(200, Dispatcher.prefetch(4, 50, LEASE, TimeUnit.SECONDS.toNanos(1), 100));
+		assertEquals(200, Dispatcher.prefetch(4, 50, LEASE, 0, 100));
+		assertEquals(0, Dispatcher.prefetch(0, 50, LEASE, 0, 100));
+		assertEquals(100, Dispatcher.prefetch(4, 10, LEASE, TimeUnit.MILLISECONDS.toNanos(1), 100));
+	}
+}
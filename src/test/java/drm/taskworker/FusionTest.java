@@ -0,0 +1,164 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import drm.taskworker.queue.MemoryQueue;
+import drm.taskworker.queue.Queue;
+import drm.taskworker.queue.Queue.LeaseMode;
+import drm.taskworker.queue.TaskHandle;
+import drm.taskworker.tasks.Task;
+
+public class FusionTest {
+	/**
+	 * A runtime that records the tasks it starts instead of running them
+	 */
+	private static class RecordingRuntime extends WorkerRuntime {
+		private boolean room = true;
+		private List<Task> started = new ArrayList<>();
+		
+		@Override
+		public boolean tryExecute(Task task) {
+			if (this.room) {
+				this.started.add(task);
+			}
+			return this.room;
+		}
+	}
+	
+	@Test
+	public void testChainUntilCheckpoint() {
+		RecordingRuntime runtime = new RecordingRuntime();
+		Fusion fusion = new Fusion(runtime, 2);
+		UUID jobId = UUID.randomUUID();
+		
+		Task head = new Task(jobId, UUID.randomUUID(), "a");
+		Task first = new Task(jobId, UUID.randomUUID(), "b");
+		Task second = new Task(jobId, UUID.randomUUID(), "c");
+		Task third = new Task(jobId, UUID.randomUUID(), "d");
+		
+		// a leased task is not fused
+		assertFalse(fusion.isFused(head));
+		assertNull(fusion.release(head));
+		
+		assertTrue(fusion.fuse(head, first));
+		assertTrue(fusion.isFused(first));
+		assertTrue(fusion.fuse(first, second));
+		assertFalse(fusion.isFused(first));
+		assertTrue(fusion.isFused(second));
+		
+		// the third hop is a checkpoint, the next task is queued
+		assertFalse(fusion.fuse(second, third));
+		assertFalse(fusion.isFused(third));
+		assertEquals(2, runtime.started.size());
+		
+		assertSame(head, fusion.release(second));
+		assertFalse(fusion.isFused(second));
+	}
+	
+	@Test
+	public void testNoRoom() {
+		RecordingRuntime runtime = new RecordingRuntime();
+		runtime.room = false;
+		Fusion fusion = new Fusion(runtime, 10);
+		UUID jobId = UUID.randomUUID();
+		
+		Task head = new Task(jobId, UUID.randomUUID(), "a");
+		Task next = new Task(jobId, UUID.randomUUID(), "b");
+		
+		assertFalse(fusion.fuse(head, next));
+		assertFalse(fusion.isFused(next));
+		assertTrue(runtime.started.isEmpty());
+	}
+	
+	@Test
+	public void testRecoverFromHead() throws InterruptedException {
+		MemoryQueue queue = new MemoryQueue();
+		Fusion fusion = new Fusion(new RecordingRuntime(), 10);
+		UUID jobId = UUID.randomUUID();
+		
+		Task head = new Task(jobId, UUID.randomUUID(), "a");
+		queue.addTask(head);
+		assertEquals(1, queue.leaseTasks(50, TimeUnit.MILLISECONDS, 1, "a", jobId).size());
+		
+		Task next = new Task(jobId, UUID.randomUUID(), "b");
+		assertTrue(fusion.fuse(head, next));
+		
+		// the node fails before the checkpoint: the head was not finished, so
+		// it is leased again when its lease expires
+		Thread.sleep(200);
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "a", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(head.getId(), handles.get(0).getId());
+		
+		// at the checkpoint the head is finished
+		Task leased = fusion.release(next);
+		assertSame(head, leased);
+		queue.finishTask(leased);
+		Thread.sleep(100);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "a", jobId).isEmpty());
+	}
+	
+	@Test
+	public void testRecoverFromHeadOnQueue() throws Exception {
+		TimingStore store = new TimingStore();
+		Queue queue = new Queue(store, LeaseMode.LOCK);
+		Fusion fusion = new Fusion(new RecordingRuntime(), 10);
+		UUID jobId = UUID.randomUUID();
+		
+		Task head = new Task(jobId, UUID.randomUUID(), "a");
+		queue.addTask(head);
+		assertEquals(1, queue.leaseTasks(1, TimeUnit.SECONDS, 1, "a", jobId).size());
+		
+		// the fused tasks write their timing when they finish
+		Task first = new Task(jobId, UUID.randomUUID(), "b");
+		Task second = new Task(jobId, UUID.randomUUID(), "c");
+		assertTrue(fusion.fuse(head, first));
+		store.getTimings().add(first.getId());
+		assertTrue(fusion.fuse(first, second));
+		
+		// the node fails while the second task runs: the reaper finds no 
+		// timing for the head and it is leased again
+		List<TaskHandle> handles = new ArrayList<>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (handles.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			handles = queue.leaseTasks(1, TimeUnit.SECONDS, 1, "a", jobId);
+		}
+		assertEquals(1, handles.size());
+		assertEquals(head.getId(), handles.get(0).getId());
+		
+		// at the checkpoint the head gets its timing and is finished
+		assertSame(head, fusion.release(second));
+		store.getTimings().add(head.getId());
+		queue.finishTask(head);
+		Thread.sleep(1500);
+		assertTrue(queue.leaseTasks(1, TimeUnit.SECONDS, 1, "a", jobId).isEmpty());
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import drm.taskworker.queue.MemoryQueueStore;
+
+/**
+ * A memory store that reports the timings a test saved, so the reaper of a
+ * queue on this store can tell finished tasks from failed ones
+ */
+class TimingStore extends MemoryQueueStore {
+	private Set<UUID> timings = Collections.synchronizedSet(new HashSet<UUID>());
+	
+	/**
+	 * The ids of the tasks that have a timing entry
+	 */
+	public Set<UUID> getTimings() {
+		return this.timings;
+	}
+	
+	@Override
+	public boolean hasTiming(UUID id) {
+		return this.timings.contains(id);
+	}
+}
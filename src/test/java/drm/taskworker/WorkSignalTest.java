@@ -0,0 +1,72 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WorkSignalTest {
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		WorkSignal signal = new WorkSignal();
+		long version = signal.getVersion("test");
+		assertFalse(signal.await("test", version, 10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testSignalBeforeAwait() throws InterruptedException {
+		WorkSignal signal = new WorkSignal();
+		long version = signal.getVersion("test");
+		signal.signal("test");
+		signal.signal("other");
+		
+		// a signal between reading the version and waiting is not lost
+		assertTrue(signal.await("test", version, 10, TimeUnit.SECONDS));
+		assertFalse(signal.await("other", signal.getVersion("other"), 10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testWakeUp() throws InterruptedException {
+		final WorkSignal signal = new WorkSignal();
+		long version = signal.getVersion("test");
+		
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				signal.signal("test");
+			}
+		};
+		t.start();
+		
+		long start = System.currentTimeMillis();
+		assertTrue(signal.await("test", version, 10, TimeUnit.SECONDS));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		t.join();
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import drm.taskworker.queue.Queue;
+import drm.taskworker.queue.Queue.LeaseMode;
+import drm.taskworker.queue.QueueBackend;
+import drm.taskworker.queue.TaskHandle;
+import drm.taskworker.tasks.Task;
+import drm.taskworker.tasks.TaskResult;
+import drm.taskworker.tasks.TaskResult.Result;
+
+public class WorkerTest {
+	/**
+	 * A worker that queues the tasks of a split without their join and that
+	 * can fail halfway a split
+	 */
+	private static class SplitWorker extends Worker {
+		private TimingStore store;
+		private int failAfter = -1;
+		
+		public SplitWorker(TimingStore store) {
+			super("split");
+			this.store = store;
+		}
+		
+		@Override
+		public TaskResult work(Task task) {
+			return null;
+		}
+		
+		@Override
+		void queueSplit(UUID jobId, UUID joinId, List<Task> tasks) {
+			for (int i = 0; i < tasks.size(); i++) {
+				if (i == this.failAfter) {
+					throw new IllegalStateException("Unable to queue " + tasks.size() + " tasks");
+				}
+				Service.get().queue.addTaskIfAbsent(tasks.get(i));
+			}
+		}
+		
+		@Override
+		void saveTiming(Task task, boolean async) {
+			this.store.getTimings().add(task.getId());
+		}
+	}
+	
+	private QueueBackend queue;
+	
+	@Before
+	public void setUp() {
+		this.queue = Service.get().queue;
+	}
+	
+	@After
+	public void tearDown() {
+		Service.get().queue = this.queue;
+	}
+	
+	private static TaskResult split(UUID jobId, int tasks) {
+		TaskResult result = new TaskResult().setResult(Result.SUCCESS);
+		for (int i = 0; i < tasks; i++) {
+			result.addNextTask(new Task(jobId, UUID.randomUUID(), "child"));
+		}
+		return result;
+	}
+	
+	@Test
+	public void testFailedSplit() throws Exception {
+		TimingStore store = new TimingStore();
+		Queue queue = new Queue(store, LeaseMode.LOCK);
+		Service.get().queue = queue;
+		
+		SplitWorker worker = new SplitWorker(store);
+		UUID jobId = UUID.randomUUID();
+		Task parent = new Task(jobId, UUID.randomUUID(), "split");
+		queue.addTask(parent);
+		assertEquals(1, queue.leaseTasks(1, TimeUnit.SECONDS, 1, "split", jobId).size());
+		
+		// only part of the split is queued
+		worker.failAfter = 2;
+		try {
+			worker.complete(parent, split(jobId, 4));
+			fail("The split should fail");
+		} catch (IllegalStateException e) {
+		}
+		assertFalse(store.hasTiming(parent.getId()));
+		
+		// the parent is leased again when its lease expires
+		List<TaskHandle> handles = new ArrayList<>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (handles.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "split", jobId);
+		}
+		assertEquals(1, handles.size());
+		assertEquals(parent.getId(), handles.get(0).getId());
+		
+		// and the split queues the tasks that are missing
+		worker.failAfter = -1;
+		worker.complete(parent, split(jobId, 4));
+		assertTrue(store.hasTiming(parent.getId()));
+		
+		Set<UUID> children = new HashSet<>();
+		for (TaskHandle handle : queue.leaseTasks(10, TimeUnit.SECONDS, 10, "child", jobId)) {
+			children.add(handle.getId());
+		}
+		assertEquals(4, children.size());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 10, "child", jobId).isEmpty());
+		assertEquals(0, queue.getDepth("split", jobId).getInFlight());
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.netflix.astyanax.Execution;
+import com.netflix.astyanax.connectionpool.OperationResult;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+public class WritePipelineTest {
+	
+	/**
+	 * A write that is acknowledged when the test completes it
+	 */
+	private static class Write implements Execution<Void> {
+		private SettableFuture<OperationResult<Void>> result = SettableFuture.create();
+		private AtomicInteger sent;
+		
+		public Write(AtomicInteger sent) {
+			this.sent = sent;
+		}
+		
+		@Override
+		public OperationResult<Void> execute() throws ConnectionException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ListenableFuture<OperationResult<Void>> executeAsync() throws ConnectionException {
+			this.sent.incrementAndGet();
+			return this.result;
+		}
+	}
+
+	@Test
+	public void testSubmitAll() throws Exception {
+		WritePipeline pipeline = new WritePipeline(4);
+		AtomicInteger sent = new AtomicInteger();
+		
+		List<Write> writes = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			writes.add(new Write(sent));
+		}
+		
+		// all writes are sent before any of them is acknowledged
+		ListenableFuture<?> all = pipeline.submitAll(writes);
+		assertEquals(3, sent.get());
+		assertEquals(1, pipeline.available());
+		assertFalse(all.isDone());
+		
+		for (Write write : writes) {
+			write.result.set(null);
+		}
+		all.get();
+		assertEquals(4, pipeline.available());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		WritePipeline pipeline = new WritePipeline(2);
+		AtomicInteger sent = new AtomicInteger();
+		
+		Write ok = new Write(sent);
+		Write failed = new Write(sent);
+		List<Write> writes = new ArrayList<>();
+		writes.add(ok);
+		writes.add(failed);
+		
+		ListenableFuture<?> all = pipeline.submitAll(writes);
+		ok.result.set(null);
+		failed.result.setException(new IllegalStateException("write failed"));
+		
+		try {
+			all.get();
+			fail("A failed write should fail all writes");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(2, pipeline.available());
+	}
+	
+	@Test
+	public void testSend() throws Exception {
+		WritePipeline pipeline = new WritePipeline(2);
+		AtomicInteger sent = new AtomicInteger();
+		
+		// a send does not wait for the write and a failure frees its slot
+		Write failed = new Write(sent);
+		pipeline.send(failed, "fail a write");
+		assertEquals(1, sent.get());
+		assertEquals(1, pipeline.available());
+		
+		failed.result.setException(new IllegalStateException("write failed"));
+		assertEquals(2, pipeline.available());
+	}
+}
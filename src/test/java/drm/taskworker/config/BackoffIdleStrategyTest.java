@@ -0,0 +1,73 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BackoffIdleStrategyTest {
+
+	@Test
+	public void testBackoff() {
+		BackoffIdleStrategy idle = new BackoffIdleStrategy(10, 100, 0);
+		
+		assertEquals(0, idle.getIdleTime(0));
+		assertEquals(10, idle.getIdleTime(1));
+		assertEquals(20, idle.getIdleTime(2));
+		assertEquals(80, idle.getIdleTime(4));
+		assertEquals(100, idle.getIdleTime(5));
+		assertEquals(100, idle.getIdleTime(1000));
+	}
+	
+	@Test
+	public void testJitter() {
+		BackoffIdleStrategy idle = new BackoffIdleStrategy(100, 100, 0.5);
+		
+		for (int i = 0; i < 100; i++) {
+			long wait = idle.getIdleTime(1);
+			assertTrue(wait > 50 && wait <= 100);
+		}
+	}
+	
+	@Test
+	public void testParse() {
+		Map<String, Object> map = new HashMap<>();
+		map.put("min", 5);
+		map.put("max", 50);
+		
+		BackoffIdleStrategy idle = BackoffIdleStrategy.parse(map);
+		assertEquals(5, idle.getMin());
+		assertEquals(50, idle.getMax());
+		assertEquals(0.5, idle.getJitter(), 0.0);
+		
+		assertEquals(10, BackoffIdleStrategy.parse(null).getMin());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoMinimum() {
+		new BackoffIdleStrategy(0, 100, 0);
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+package drm.taskworker.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testShouldRetry() {
+		RetryPolicy policy = new RetryPolicy(3, 100, 1000, 0);
+		
+		assertTrue(policy.shouldRetry(1));
+		assertTrue(policy.shouldRetry(2));
+		assertFalse(policy.shouldRetry(3));
+	}
+	
+	@Test
+	public void testBackoff() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000, 0);
+		
+		assertEquals(100, policy.getDelay(1));
+		assertEquals(200, policy.getDelay(2));
+		assertEquals(800, policy.getDelay(4));
+		assertEquals(1000, policy.getDelay(5));
+		assertEquals(1000, policy.getDelay(100));
+	}
+	
+	@Test
+	public void testJitter() {
+		RetryPolicy policy = new RetryPolicy(10, 1000, 1000, 0.5);
+		
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.getDelay(1);
+			assertTrue(delay > 500 && delay <= 1000);
+		}
+	}
+	
+	@Test
+	public void testParse() {
+		Map<String, Object> map = new HashMap<>();
+		map.put("attempts", 5);
+		map.put("backoff", 250);
+		
+		RetryPolicy policy = RetryPolicy.parse(map);
+		assertEquals(5, policy.getMaxAttempts());
+		assertEquals(250, policy.getBackoff());
+		assertEquals(60000, policy.getMaxBackoff());
+		
+		assertEquals(3, RetryPolicy.parse(null).getMaxAttempts());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoAttempts() {
+		new RetryPolicy(0, 100, 1000, 0);
+	}
+}
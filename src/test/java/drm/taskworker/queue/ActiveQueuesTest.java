@@ -0,0 +1,73 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.queue;
+
+import static org.junit.Assert.*;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class ActiveQueuesTest {
+
+	@Test
+	public void testRoundRobin() {
+		ActiveQueues active = new ActiveQueues();
+		UUID job1 = UUID.randomUUID();
+		UUID job2 = UUID.randomUUID();
+		
+		assertNull(active.next("test"));
+		assertTrue(active.add("test", job1));
+		assertTrue(active.add("test", job2));
+		assertFalse(active.add("test", job1));
+		assertEquals(2, active.size("test"));
+		assertEquals(0, active.size("other"));
+		
+		assertEquals(job1, active.next("test"));
+		assertEquals(job2, active.next("test"));
+		assertEquals(job1, active.next("test"));
+	}
+
+	@Test
+	public void testRemove() {
+		ActiveQueues active = new ActiveQueues();
+		UUID job1 = UUID.randomUUID();
+		UUID job2 = UUID.randomUUID();
+		active.add("test", job1);
+		active.add("test", job2);
+		
+		active.remove("test", job1);
+		assertEquals(job2, active.next("test"));
+		assertEquals(job2, active.next("test"));
+		
+		// adding a job again that is still in the ring does not duplicate it
+		active.remove("test", job2);
+		active.add("test", job2);
+		active.add("test", job1);
+		assertEquals(job2, active.next("test"));
+		assertEquals(job1, active.next("test"));
+		assertEquals(job2, active.next("test"));
+		
+		active.removeJob(job2);
+		active.removeJob(job1);
+		assertNull(active.next("test"));
+	}
+}
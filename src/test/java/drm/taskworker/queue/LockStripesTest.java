@@ -0,0 +1,89 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+package drm.taskworker.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class LockStripesTest {
+
+	@Test
+	public void testSize() {
+		assertEquals(1, new LockStripes(1).size());
+		assertEquals(64, new LockStripes(64).size());
+		assertEquals(128, new LockStripes(65).size());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoStripes() {
+		new LockStripes(0);
+	}
+	
+	@Test
+	public void testStripesAreStable() {
+		LockStripes stripes = new LockStripes(16);
+		String key = "worker-" + UUID.randomUUID();
+		Object lock = stripes.get(key);
+		
+		// many keys do not grow the table and do not change existing mappings
+		for (int i = 0; i < 100000; i++) {
+			stripes.get("worker-" + UUID.randomUUID());
+		}
+		assertEquals(16, stripes.size());
+		assertSame(lock, stripes.get(new String(key)));
+	}
+	
+	@Test
+	public void testMutualExclusion() throws InterruptedException {
+		final LockStripes stripes = new LockStripes(4);
+		final int[] counters = new int[8];
+		List<Thread> threads = new ArrayList<>();
+		
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						int key = j % counters.length;
+						synchronized (stripes.get("key-" + key)) {
+							counters[key]++;
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		for (int counter : counters) {
+			assertEquals(100000, counter);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+package drm.taskworker.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import drm.taskworker.tasks.Priority;
+import drm.taskworker.tasks.Task;
+
+public class MemoryQueueTest {
+
+	@Test
+	public void testLeaseAndFinish() {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task first = new Task(jobId, UUID.randomUUID(), "worker");
+		Task second = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(first);
+		queue.addTask(second);
+		queue.addTask(new Task(jobId, UUID.randomUUID(), "other"));
+		
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", jobId);
+		assertEquals(2, handles.size());
+		assertEquals(first.getId(), handles.get(0).getId());
+		assertEquals(second.getId(), handles.get(1).getId());
+		
+		// leased tasks are not handed out again
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", jobId).isEmpty());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", null).isEmpty());
+		
+		queue.finishTask(first);
+		queue.finishTask(second);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", jobId).isEmpty());
+	}
+	
+	@Test
+	public void testExpiredLease() throws InterruptedException {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(task);
+		
+		assertEquals(1, queue.leaseTasks(50, TimeUnit.MILLISECONDS, 1, "worker", jobId).size());
+		Thread.sleep(200);
+		
+		// the lease expired so the task is available again
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(task.getId(), handles.get(0).getId());
+		
+		queue.finishTask(task);
+		Thread.sleep(100);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+	}
+	
+	@Test
+	public void testPriorityLanes() {
+		MemoryQueue queue = new MemoryQueue(new Lanes(true, 3));
+		UUID jobId = UUID.randomUUID();
+		
+		for (int i = 0; i < 10; i++) {
+			Task task = new Task(jobId, UUID.randomUUID(), "worker");
+			task.setPriority(Priority.BULK);
+			queue.addTask(task);
+		}
+		for (int i = 0; i < 10; i++) {
+			Task task = new Task(jobId, UUID.randomUUID(), "worker");
+			task.setPriority(Priority.HIGH);
+			queue.addTask(task);
+		}
+		
+		// the high lane is drained first, except for every third lease
+		int bulk = 0;
+		for (int i = 0; i < 9; i++) {
+			List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+			assertEquals(1, handles.size());
+			if (handles.get(0).getPriority() == Priority.BULK) {
+				bulk++;
+			}
+		}
+		assertEquals(3, bulk);
+	}
+	
+	@Test
+	public void testDelayedTask() throws InterruptedException {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(task, System.currentTimeMillis() + 100);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		assertEquals(1, queue.getDepth("worker", jobId).getPending());
+		
+		Thread.sleep(300);
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(task.getId(), handles.get(0).getId());
+	}
+	
+	@Test
+	public void testRetryTask() {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(task);
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+		
+		// the retry replaces the leased attempt
+		queue.retryTask(task, 0);
+		assertEquals(1, queue.getDepth("worker", jobId).getPending());
+		assertEquals(0, queue.getDepth("worker", jobId).getLeased());
+		
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(task.getId(), handles.get(0).getId());
+	}
+	
+	@Test
+	public void testAddTaskIfAbsent() {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task queued = new Task(jobId, UUID.randomUUID(), "worker");
+		Task leased = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(leased);
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+		queue.addTask(queued);
+		
+		// adding a split again only adds the tasks that are missing
+		Task missing = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTaskIfAbsent(queued);
+		queue.addTaskIfAbsent(leased);
+		queue.addTaskIfAbsent(missing);
+		assertEquals(2, queue.getDepth("worker", jobId).getPending());
+		assertEquals(2, queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", jobId).size());
+	}
+	
+	@Test
+	public void testDepth() throws InterruptedException {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task first = new Task(jobId, UUID.randomUUID(), "worker");
+		Task second = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(first);
+		queue.addTask(second);
+		queue.addTask(new Task(UUID.randomUUID(), UUID.randomUUID(), "worker"));
+		
+		assertEquals(2, queue.getDepth("worker", jobId).getPending());
+		assertEquals(3, queue.getDepth("worker").getPending());
+		
+		queue.leaseTasks(50, TimeUnit.MILLISECONDS, 1, "worker", jobId);
+		QueueDepth depth = queue.getDepth("worker", jobId);
+		assertEquals(1, depth.getPending());
+		assertEquals(1, depth.getLeased());
+		assertEquals(2, depth.getInFlight());
+		
+		// the expired lease moves the task back to pending
+		Thread.sleep(200);
+		assertEquals(2, queue.getDepth("worker", jobId).getPending());
+		assertEquals(0, queue.getDepth("worker", jobId).getLeased());
+		
+		queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+		queue.finishTask(first);
+		queue.finishTask(second);
+		assertEquals(0, queue.getDepth("worker", jobId).getInFlight());
+		assertEquals(1, queue.getDepth("worker").getInFlight());
+	}
+	
+	@Test
+	public void testRenewLease() throws InterruptedException {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(task);
+		
+		assertEquals(1, queue.leaseTasks(100, TimeUnit.MILLISECONDS, 1, "worker", jobId).size());
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(50);
+			queue.renewLeases(Collections.singletonList(task), 100, TimeUnit.MILLISECONDS);
+		}
+		
+		// the renewed lease did not expire
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		
+		Thread.sleep(300);
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+	}
+	
+	@Test
+	public void testConcurrentLeasing() throws InterruptedException {
+		final MemoryQueue queue = new MemoryQueue();
+		final List<UUID> jobs = new ArrayList<>();
+		final int tasksPerJob = 500;
+		
+		for (int i = 0; i < 20; i++) {
+			UUID jobId = UUID.randomUUID();
+			jobs.add(jobId);
+			for (int j = 0; j < tasksPerJob; j++) {
+				queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"));
+			}
+		}
+		
+		final ConcurrentMap<UUID, Boolean> leased = new ConcurrentHashMap<>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					int misses = 0;
+					while (misses < 100) {
+						UUID jobId = jobs.get(random.nextInt(jobs.size()));
+						List<TaskHandle> handles = queue.leaseTasks(1, TimeUnit.MINUTES, 1 + random.nextInt(5), "worker", jobId);
+						if (handles.isEmpty()) {
+							misses++;
+						}
+						for (TaskHandle handle : handles) {
+							if (leased.putIfAbsent(handle.getId(), true) != null) {
+								duplicates.incrementAndGet();
+							}
+							queue.finishTask(new Task(handle.getJobID(), handle.getId(), handle.getWorkerName()));
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		// drain what the random walks missed
+		for (UUID jobId : jobs) {
+			for (TaskHandle handle : queue.leaseTasks(1, TimeUnit.MINUTES, tasksPerJob, "worker", jobId)) {
+				if (leased.putIfAbsent(handle.getId(), true) != null) {
+					duplicates.incrementAndGet();
+				}
+			}
+		}
+		
+		assertEquals(0, duplicates.get());
+		assertEquals(jobs.size() * tasksPerJob, leased.size());
+		
+		// finished jobs do not leave anything behind
+		assertEquals(jobs.size(), queue.getJobCount());
+		for (UUID jobId : jobs) {
+			queue.jobFinished(jobId);
+		}
+		assertEquals(0, queue.getJobCount());
+		assertTrue(queue.leaseTasks(1, TimeUnit.MINUTES, 1, "worker", null).isEmpty());
+	}
+	
+	@Test
+	public void testFinishedJobIsNotRecreated() throws InterruptedException {
+		MemoryQueue queue = new MemoryQueue();
+		UUID jobId = UUID.randomUUID();
+		
+		queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"));
+		queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"), System.currentTimeMillis() + 50);
+		assertEquals(1, queue.leaseTasks(50, TimeUnit.MILLISECONDS, 1, "worker", jobId).size());
+		
+		queue.jobFinished(jobId);
+		assertEquals(0, queue.getJobCount());
+		
+		// the lease expires and the delayed task becomes visible after the 
+		// job finished
+		Thread.sleep(200);
+		assertEquals(0, queue.getJobCount());
+		assertTrue(queue.leaseTasks(1, TimeUnit.MINUTES, 10, "worker", null).isEmpty());
+		assertTrue(queue.leaseTasks(1, TimeUnit.MINUTES, 10, "worker", jobId).isEmpty());
+		assertEquals(0, queue.getJobCount());
+		assertEquals(0, queue.getDepth("worker").getInFlight());
+	}
+
+	@Test
+	public void testLeaseAnyJob() throws Exception {
+		MemoryQueue queue = new MemoryQueue();
+		UUID job1 = UUID.randomUUID();
+		UUID job2 = UUID.randomUUID();
+		queue.addTask(new Task(job1, UUID.randomUUID(), "test"));
+		queue.addTask(new Task(job2, UUID.randomUUID(), "test"));
+		
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 10, "test", null);
+		assertEquals(2, handles.size());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 10, "test", null).isEmpty());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 10, "other", null).isEmpty());
+		
+		queue.addTask(new Task(job2, UUID.randomUUID(), "test"));
+		handles = queue.leaseTasks(10, TimeUnit.SECONDS, 10, "test", null);
+		assertEquals(1, handles.size());
+		assertEquals(job2, handles.get(0).getJobID());
+	}
+}
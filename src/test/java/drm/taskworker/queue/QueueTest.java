@@ -0,0 +1,344 @@
+/**
+ *
+ *     Copyright 2013 KU Leuven Research and Development - iMinds - Distrinet
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ *     Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *     Technical Contact: bart.vanbrabant@cs.kuleuven.be
+ */
+
+package drm.taskworker.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+
+import drm.taskworker.queue.Queue.LeaseMode;
+import drm.taskworker.tasks.Priority;
+import drm.taskworker.tasks.Task;
+
+/**
+ * Runs the cassandra queue on the memory store
+ */
+public class QueueTest {
+	
+	private static void testLeaseAndFinish(LeaseMode mode) throws ConnectionException {
+		Queue queue = new Queue(new MemoryQueueStore(), mode);
+		UUID jobId = UUID.randomUUID();
+		
+		for (int i = 0; i < 10; i++) {
+			queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"));
+		}
+		queue.addTask(new Task(jobId, UUID.randomUUID(), "other"));
+		assertEquals(10, queue.getDepth("worker", jobId).getPending());
+		
+		Set<UUID> leased = new HashSet<>();
+		for (TaskHandle handle : queue.leaseTasks(10, TimeUnit.SECONDS, 4, "worker", jobId)) {
+			leased.add(handle.getId());
+		}
+		for (TaskHandle handle : queue.leaseTasks(10, TimeUnit.SECONDS, 10, "worker", null)) {
+			leased.add(handle.getId());
+		}
+		assertEquals(10, leased.size());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 10, "worker", jobId).isEmpty());
+		assertEquals(10, queue.getDepth("worker").getLeased());
+		
+		for (UUID id : leased) {
+			queue.finishTask(new Task(jobId, id, "worker"));
+		}
+		assertEquals(0, queue.getDepth("worker", jobId).getInFlight());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 10, "worker", jobId).isEmpty());
+	}
+	
+	@Test
+	public void testLeaseAndFinishLock() throws ConnectionException {
+		testLeaseAndFinish(LeaseMode.LOCK);
+	}
+	
+	@Test
+	public void testLeaseAndFinishCas() throws ConnectionException {
+		testLeaseAndFinish(LeaseMode.CAS);
+	}
+	
+	@Test
+	public void testLateRenewal() throws ConnectionException {
+		Queue queue = new Queue(new MemoryQueueStore(), LeaseMode.CAS);
+		UUID jobId = UUID.randomUUID();
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		
+		queue.addTask(task);
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+		queue.finishTask(task);
+		
+		// a renewal that arrives after the task finished does not bring it back
+		queue.renewLeases(Collections.singletonList(task), 10, TimeUnit.SECONDS);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+	}
+	
+	@Test
+	public void testRetryTask() throws ConnectionException {
+		Queue queue = new Queue(new MemoryQueueStore(), LeaseMode.LOCK);
+		UUID jobId = UUID.randomUUID();
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		
+		queue.addTask(task);
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+		queue.retryTask(task, 0);
+		
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(task.getId(), handles.get(0).getId());
+		assertEquals(1, queue.getDepth("worker", jobId).getLeased());
+	}
+	
+	private static void testAddTaskIfAbsent(LeaseMode mode) throws ConnectionException {
+		Queue queue = new Queue(new MemoryQueueStore(), mode);
+		UUID jobId = UUID.randomUUID();
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		
+		queue.addTaskIfAbsent(task);
+		queue.addTaskIfAbsent(task);
+		assertEquals(1, queue.getDepth("worker", jobId).getPending());
+		
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 10, "worker", jobId).size());
+		queue.finishTask(task);
+		
+		// the finished marker keeps the task from being added again
+		queue.addTaskIfAbsent(task);
+		assertEquals(0, queue.getDepth("worker", jobId).getInFlight());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 10, "worker", jobId).isEmpty());
+	}
+	
+	@Test
+	public void testAddTaskIfAbsentLock() throws ConnectionException {
+		testAddTaskIfAbsent(LeaseMode.LOCK);
+	}
+	
+	@Test
+	public void testAddTaskIfAbsentCas() throws ConnectionException {
+		testAddTaskIfAbsent(LeaseMode.CAS);
+	}
+	
+	/**
+	 * A memory store that counts the pages that are read and of which the 
+	 * locks can fail
+	 */
+	private static class CountingStore extends MemoryQueueStore {
+		private AtomicInteger pages = new AtomicInteger();
+		private AtomicInteger failedLocks = new AtomicInteger();
+		
+		@Override
+		public List<TaskRow> readPage(String queueId, UUID after, int limit) {
+			this.pages.incrementAndGet();
+			return super.readPage(queueId, after, limit);
+		}
+		
+		@Override
+		public Lock lock(String queueId) {
+			if (this.failedLocks.getAndDecrement() > 0) {
+				return null;
+			}
+			return super.lock(queueId);
+		}
+	}
+	
+	@Test
+	public void testEmptyQueue() throws Exception {
+		CountingStore store = new CountingStore();
+		Queue queue = new Queue(store, LeaseMode.LOCK);
+		UUID jobId = UUID.randomUUID();
+		
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		int pages = store.pages.get();
+		assertTrue(pages > 0);
+		
+		// an empty queue is not read again
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		assertEquals(pages, store.pages.get());
+		
+		// until a task is added on this node
+		queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"));
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		pages = store.pages.get();
+		
+		// a task that another node adds is found after the empty interval
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		new Queue(store, LeaseMode.LOCK).addTask(task);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		assertEquals(pages, store.pages.get());
+		
+		Thread.sleep(1100);
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(task.getId(), handles.get(0).getId());
+	}
+	
+	@Test
+	public void testFailedLockIsNotEmpty() throws ConnectionException {
+		CountingStore store = new CountingStore();
+		Queue queue = new Queue(store, LeaseMode.LOCK, true);
+		UUID jobId = UUID.randomUUID();
+		Task task = new Task(jobId, UUID.randomUUID(), "worker");
+		queue.addTask(task);
+		
+		// a bucket that could not be locked was not read
+		store.failedLocks.set(1);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId);
+		assertEquals(1, handles.size());
+		assertEquals(task.getId(), handles.get(0).getId());
+	}
+	
+	@Test
+	public void testLanesLockOnce() throws ConnectionException {
+		final AtomicInteger locks = new AtomicInteger();
+		MemoryQueueStore store = new MemoryQueueStore() {
+			@Override
+			public Lock lock(String queueId) {
+				locks.incrementAndGet();
+				return super.lock(queueId);
+			}
+		};
+		Queue queue = new Queue(store, LeaseMode.LOCK, true, new Lanes(true, 100));
+		UUID jobId = UUID.randomUUID();
+		
+		for (int i = 0; i < 5; i++) {
+			Task urgent = new Task(jobId, UUID.randomUUID(), "worker");
+			urgent.setPriority(Priority.HIGH);
+			queue.addTask(urgent);
+			
+			Task bulk = new Task(jobId, UUID.randomUUID(), "worker");
+			bulk.setPriority(Priority.BULK);
+			queue.addTask(bulk);
+		}
+		
+		// the high lane fills the lease, the other lanes are not locked
+		List<TaskHandle> handles = queue.leaseTasks(10, TimeUnit.SECONDS, 5, "worker", jobId);
+		assertEquals(5, handles.size());
+		for (TaskHandle handle : handles) {
+			assertEquals(Priority.HIGH, handle.getPriority());
+		}
+		assertEquals(1, locks.get());
+	}
+	
+	@Test
+	public void testDelayedTask() throws Exception {
+		Queue queue = new Queue(new MemoryQueueStore(), LeaseMode.CAS);
+		UUID jobId = UUID.randomUUID();
+		
+		queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"), System.currentTimeMillis() + 100);
+		assertTrue(queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).isEmpty());
+		
+		// the delays of a bucket are checked once every delay interval
+		Thread.sleep(1100);
+		assertEquals(1, queue.leaseTasks(10, TimeUnit.SECONDS, 1, "worker", jobId).size());
+	}
+	
+	/**
+	 * Lease and finish the tasks of several jobs from several threads. In 
+	 * lock mode the threads of a node serialize on the lock stripes of the 
+	 * buckets, in cas mode on the conditional updates.
+	 */
+	private static void testConcurrentLeasing(LeaseMode mode) throws Exception {
+		final Queue queue = new Queue(new MemoryQueueStore(), mode);
+		final List<UUID> jobs = new ArrayList<>();
+		final int tasksPerJob = 200;
+		
+		for (int i = 0; i < 10; i++) {
+			UUID jobId = UUID.randomUUID();
+			jobs.add(jobId);
+			for (int j = 0; j < tasksPerJob; j++) {
+				queue.addTask(new Task(jobId, UUID.randomUUID(), "worker"));
+			}
+		}
+		
+		final ConcurrentMap<UUID, Boolean> leased = new ConcurrentHashMap<>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					int misses = 0;
+					try {
+						while (misses < 20) {
+							UUID jobId = jobs.get(random.nextInt(jobs.size()));
+							List<TaskHandle> handles = queue.leaseTasks(1, TimeUnit.MINUTES, 1 + random.nextInt(5), "worker", jobId);
+							if (handles.isEmpty()) {
+								misses++;
+							}
+							for (TaskHandle handle : handles) {
+								if (leased.putIfAbsent(handle.getId(), true) != null) {
+									duplicates.incrementAndGet();
+								}
+								queue.finishTask(new Task(handle.getJobID(), handle.getId(), handle.getWorkerName()));
+							}
+						}
+					} catch (ConnectionException e) {
+						errors.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		// drain what the random walks missed
+		for (UUID jobId : jobs) {
+			for (TaskHandle handle : queue.leaseTasks(1, TimeUnit.MINUTES, tasksPerJob, "worker", jobId)) {
+				if (leased.putIfAbsent(handle.getId(), true) != null) {
+					duplicates.incrementAndGet();
+				}
+			}
+		}
+		
+		assertEquals(0, errors.get());
+		assertEquals(0, duplicates.get());
+		assertEquals(jobs.size() * tasksPerJob, leased.size());
+	}
+	
+	@Test
+	public void testConcurrentLeasingLock() throws Exception {
+		testConcurrentLeasing(LeaseMode.LOCK);
+	}
+	
+	@Test
+	public void testConcurrentLeasingCas() throws Exception {
+		testConcurrentLeasing(LeaseMode.CAS);
+	}
+}